@@ -3,6 +3,7 @@ package com.media.anto.downloadvideotest;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Looper;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
@@ -86,21 +87,15 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             }
 
             @Override
-            public void onProgress(final String id, final long downloadedBytes, final int progress) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mTxtProgress != null)
-                            mTxtProgress.setText(String.valueOf(progress));
-                        if (mTxtBytes != null)
-                            mTxtBytes.setText(String.valueOf((int) downloadedBytes));
-                        if (mTxtId != null)
-                            mTxtId.setText(id);
-                    }
-                });
-
+            public void onProgress(String id, long downloadedBytes, int progress) {
+                if (mTxtProgress != null)
+                    mTxtProgress.setText(String.valueOf(progress));
+                if (mTxtBytes != null)
+                    mTxtBytes.setText(String.valueOf((int) downloadedBytes));
+                if (mTxtId != null)
+                    mTxtId.setText(id);
             }
-        });
+        }, Looper.getMainLooper());
     }
 
     private long getCurrentTimeStamp() {
@@ -0,0 +1,172 @@
+package com.media.downloadmanager.database;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.DynamicRealm;
+import io.realm.DynamicRealmObject;
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmObjectSchema;
+import io.realm.RealmResults;
+import io.realm.Sort;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times the pending items query {@link RealmDownloadStore#getPending()} runs when the
+ * download service starts, on a database of 10k, 100k and 1M requests. One request in a
+ * hundred is pending.
+ * <p>
+ * Every size is timed with the indexes of {@link DownloadMigration} and again after they
+ * were dropped, the baseline of the schema before version 1. The results are logged under
+ * the {@link #TAG} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PendingItemsBenchmark {
+
+    private static final String TAG = "PendingItemsBenchmark";
+
+    private static final int[] ROW_COUNTS = {10000, 100000, 1000000};
+    private static final int PENDING_EVERY = 100;
+    private static final int INSERT_BATCH = 10000;
+    private static final int RUNS = 5;
+
+    private RealmConfiguration mConfiguration;
+
+    @Before
+    public void setUp() {
+        mConfiguration = new RealmConfiguration.Builder(InstrumentationRegistry.getTargetContext())
+                .name("pending-items-benchmark.realm")
+                .schemaVersion(DownloadMigration.SCHEMA_VERSION)
+                .migration(new DownloadMigration())
+                .build();
+        Realm.deleteRealm(mConfiguration);
+    }
+
+    @After
+    public void tearDown() {
+        Realm.deleteRealm(mConfiguration);
+    }
+
+    @Test
+    public void pendingItemsLookup() {
+        int rows = 0;
+        for (int rowCount : ROW_COUNTS) {
+            long indexedUs;
+            // The typed Realm is closed before the schema is changed under it.
+            Realm realm = Realm.getInstance(mConfiguration);
+            try {
+                rows = insertRows(realm, rows, rowCount);
+                indexedUs = timeQuery(realm, rowCount);
+            } finally {
+                realm.close();
+            }
+            setIndexed(false);
+            long unindexedUs = timeUnindexedQuery(rowCount);
+            setIndexed(true);
+            Log.d(TAG, rowCount + " rows: indexed " + indexedUs + " us, unindexed "
+                    + unindexedUs + " us");
+        }
+    }
+
+    /**
+     * Returns the best time of the store query in microseconds.
+     */
+    private static long timeQuery(Realm realm, int rowCount) {
+        long bestNs = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            RealmResults<DownloadRequest> results = RealmDownloadStore.findPending(realm);
+            // Touch the first row, the results are lazy.
+            if (!results.isEmpty()) {
+                results.first().getArticleId();
+            }
+            int pending = results.size();
+            bestNs = Math.min(bestNs, System.nanoTime() - start);
+            assertEquals(rowCount / PENDING_EVERY, pending);
+        }
+        return bestNs / 1000;
+    }
+
+    /**
+     * Runs the same query as the store on the schema without the indexes. The typed Realm
+     * refuses a schema that differs from the model, so it goes through a dynamic Realm.
+     */
+    private long timeUnindexedQuery(int rowCount) {
+        DynamicRealm realm = DynamicRealm.getInstance(mConfiguration);
+        try {
+            long bestNs = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                RealmResults<DynamicRealmObject> results =
+                        realm.where(DownloadRequest.class.getSimpleName())
+                                .equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_QUEUE).or()
+                                .equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_PROGRESS)
+                                .findAllSorted(DownloadRequest.TIME_STAMP, Sort.DESCENDING,
+                                        DownloadRequest.ARTICLE_ID, Sort.ASCENDING);
+                if (!results.isEmpty()) {
+                    results.first().getString(DownloadRequest.ARTICLE_ID);
+                }
+                int pending = results.size();
+                bestNs = Math.min(bestNs, System.nanoTime() - start);
+                assertEquals(rowCount / PENDING_EVERY, pending);
+            }
+            return bestNs / 1000;
+        } finally {
+            realm.close();
+        }
+    }
+
+    /**
+     * Adds or drops the indexes the migration to version 1 adds.
+     */
+    private void setIndexed(boolean indexed) {
+        DynamicRealm realm = DynamicRealm.getInstance(mConfiguration);
+        try {
+            realm.beginTransaction();
+            RealmObjectSchema schema = realm.getSchema().get(DownloadRequest.class.getSimpleName());
+            for (String field : new String[]{DownloadRequest.DOWNLOAD_STATE, DownloadRequest.TIME_STAMP}) {
+                if (indexed && !schema.hasIndex(field)) {
+                    schema.addIndex(field);
+                } else if (!indexed && schema.hasIndex(field)) {
+                    schema.removeIndex(field);
+                }
+            }
+            realm.commitTransaction();
+        } finally {
+            realm.close();
+        }
+    }
+
+    private static int insertRows(Realm realm, int from, int to) {
+        for (int batchStart = from; batchStart < to; batchStart += INSERT_BATCH) {
+            int batchEnd = Math.min(to, batchStart + INSERT_BATCH);
+            List<DownloadRequest> requests = new ArrayList<>(batchEnd - batchStart);
+            for (int i = batchStart; i < batchEnd; i++) {
+                DownloadRequest request = new DownloadRequest("id" + i, "http://example.com/" + i,
+                        false, "/sdcard/" + i, i);
+                request.setDownloadState(i % PENDING_EVERY == 0
+                        ? ((i / PENDING_EVERY) % 2 == 0 ? IDownloadState.IN_QUEUE : IDownloadState.IN_PROGRESS)
+                        : IDownloadState.COMPLETE);
+                requests.add(request);
+            }
+            realm.beginTransaction();
+            realm.copyToRealm(requests);
+            realm.commitTransaction();
+        }
+        return to;
+    }
+}
@@ -0,0 +1,148 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.utils.TokenBucket;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the download rate, with a global budget shared by all the transfers and optional
+ * caps for single downloads. A transfer is paced by both, whichever is the slowest.
+ * <p>
+ * The limits can be changed while the downloads run, the running transfers follow from
+ * their next chunk. The bytes going through are counted, in total and by host, to measure
+ * the throughput.
+ */
+class BandwidthLimiter {
+
+    /**
+     * Bytes a transfer goes through between two checks of the limits
+     */
+    static final int PACING_CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * Longest sleep of a paced transfer before checking again if it was stopped
+     */
+    private static final long WAIT_SLICE_MS = 250;
+
+    private final TokenBucket mGlobal;
+    private final Map<String, TokenBucket> mDownloads = new ConcurrentHashMap<>();
+    private final AtomicLong mTransferredBytes = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> mHostBytes = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytesPerSecond global limit, {@link TokenBucket#UNLIMITED} for none
+     */
+    BandwidthLimiter(long maxBytesPerSecond) {
+        mGlobal = new TokenBucket(maxBytesPerSecond);
+    }
+
+    void setMaxBandwidth(long bytesPerSecond) {
+        mGlobal.setRate(bytesPerSecond);
+    }
+
+    long getMaxBandwidth() {
+        return mGlobal.getRate();
+    }
+
+    /**
+     * Caps a single download.
+     *
+     * @param bytesPerSecond limit, {@link TokenBucket#UNLIMITED} removes it
+     */
+    void setMaxBandwidth(String downloadId, long bytesPerSecond) {
+        if (bytesPerSecond == TokenBucket.UNLIMITED) {
+            mDownloads.remove(downloadId);
+            return;
+        }
+        TokenBucket bucket = mDownloads.get(downloadId);
+        if (bucket != null) {
+            bucket.setRate(bytesPerSecond);
+        } else {
+            mDownloads.put(downloadId, new TokenBucket(bytesPerSecond));
+        }
+    }
+
+    /**
+     * Forgets the cap of a download that is done.
+     */
+    void remove(String downloadId) {
+        mDownloads.remove(downloadId);
+    }
+
+    /**
+     * Returns the bytes transferred by all the downloads so far, counted by chunk.
+     */
+    long getTransferredBytes() {
+        return mTransferredBytes.get();
+    }
+
+    /**
+     * Returns the bytes transferred from a host so far, counted by chunk.
+     */
+    long getTransferredBytes(String host) {
+        AtomicLong bytes = mHostBytes.get(host);
+        return bytes == null ? 0 : bytes.get();
+    }
+
+    /**
+     * @param host host the bytes are counted for, the one the download was queued under
+     */
+    Pacer newPacer(String downloadId, String host) {
+        AtomicLong hostBytes = mHostBytes.get(host);
+        if (hostBytes == null) {
+            AtomicLong counter = new AtomicLong();
+            hostBytes = mHostBytes.putIfAbsent(host, counter);
+            if (hostBytes == null) {
+                hostBytes = counter;
+            }
+        }
+        return new Pacer(downloadId, hostBytes);
+    }
+
+    /**
+     * Paces one transfer, owned by the thread running it.
+     */
+    class Pacer {
+
+        private final String mDownloadId;
+        private final AtomicLong mHostBytes;
+        private long mPendingBytes = 0;
+
+        private Pacer(String downloadId, AtomicLong hostBytes) {
+            mDownloadId = downloadId;
+            mHostBytes = hostBytes;
+        }
+
+        /**
+         * Counts the transferred bytes, and once a chunk went through waits as long as the
+         * limits require. The wait ends early if the transfer is stopped.
+         */
+        void pace(long bytes, TransferEngine.Callback callback) {
+            mPendingBytes += bytes;
+            if (mPendingBytes < PACING_CHUNK_BYTES) {
+                return;
+            }
+            mTransferredBytes.addAndGet(mPendingBytes);
+            mHostBytes.addAndGet(mPendingBytes);
+            long waitMs = mGlobal.reserve(mPendingBytes);
+            TokenBucket bucket = mDownloads.get(mDownloadId);
+            if (bucket != null) {
+                waitMs = Math.max(waitMs, bucket.reserve(mPendingBytes));
+            }
+            mPendingBytes = 0;
+            long deadline = DownloadDispatcher.now() + waitMs;
+            while (waitMs > 0 && !callback.isStopRequested()) {
+                try {
+                    Thread.sleep(Math.min(waitMs, WAIT_SLICE_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                waitMs = deadline - DownloadDispatcher.now();
+            }
+        }
+    }
+}
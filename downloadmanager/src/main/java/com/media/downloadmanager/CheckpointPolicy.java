@@ -0,0 +1,60 @@
+package com.media.downloadmanager;
+
+/**
+ * Decides when the progress of a running download is persisted. A checkpoint is due once
+ * enough bytes were written or enough time went by since the previous one, whichever comes
+ * first. A threshold of 0 disables that criterion.
+ * <p>
+ * Before a checkpoint is recorded the written data has to be synced to the disk, so the
+ * persisted byte count never exceeds what the destination file really holds. Resuming from
+ * a checkpoint truncates anything written after it.
+ * <p>
+ * Instances keep the state of a single download and are not thread safe.
+ */
+class CheckpointPolicy {
+
+    private final long mByteThreshold;
+    private final long mIntervalMs;
+
+    private long mCheckpointedBytes;
+    private long mCheckpointTimeMs;
+
+    CheckpointPolicy(long byteThreshold, long intervalMs) {
+        mByteThreshold = byteThreshold;
+        mIntervalMs = intervalMs;
+    }
+
+    static CheckpointPolicy from(DownloadConfiguration configuration) {
+        return new CheckpointPolicy(configuration.getCheckpointBytes(),
+                configuration.getCheckpointIntervalMs());
+    }
+
+    /**
+     * Starts tracking a download from the given offset.
+     */
+    void reset(long checkpointedBytes) {
+        mCheckpointedBytes = checkpointedBytes;
+        mCheckpointTimeMs = now();
+    }
+
+    boolean shouldCheckpoint(long currentBytes) {
+        if (currentBytes == mCheckpointedBytes) {
+            return false;
+        }
+        if (mByteThreshold > 0 && currentBytes - mCheckpointedBytes >= mByteThreshold) {
+            return true;
+        }
+        return mIntervalMs > 0 && now() - mCheckpointTimeMs >= mIntervalMs;
+    }
+
+    /**
+     * Records that the given number of bytes is safely on disk and persisted.
+     */
+    void onCheckpoint(long currentBytes) {
+        reset(currentBytes);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
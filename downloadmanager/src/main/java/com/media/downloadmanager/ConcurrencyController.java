@@ -0,0 +1,250 @@
+package com.media.downloadmanager;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Decides how many downloads run at the same time.
+ * <p>
+ * The dispatchers take a slot before taking a request from the queue and give it back once
+ * the download ends, the slots above the limit wait. With adaptive concurrency a background
+ * thread samples the throughput of all the transfers and moves the limit between the
+ * configured bounds:
+ * <ul>
+ * <li>while every slot is busy and requests are waiting, one more download is added,</li>
+ * <li>if it didn't raise the throughput by {@link #MIN_GAIN} it is taken back and the
+ * limit holds for a while,</li>
+ * <li>if the throughput falls under {@link #DECREASE_THRESHOLD} of the best seen at the
+ * current limit, the limit is halved.</li>
+ * </ul>
+ * A network change resets the estimate and the limit goes back to the minimum. Without
+ * adaptive concurrency every dispatcher has a slot.
+ */
+class ConcurrencyController {
+
+    private static final String TAG = "ConcurrencyController";
+
+    static final long SAMPLE_INTERVAL_MS = 3000;
+
+    /**
+     * Relative throughput gain an added download should bring to be kept
+     */
+    static final double MIN_GAIN = 0.1;
+
+    /**
+     * Fraction of the best throughput under which the limit is halved
+     */
+    static final double DECREASE_THRESHOLD = 0.6;
+
+    /**
+     * Samples the limit holds after a failed increase
+     */
+    private static final int HOLD_SAMPLES = 5;
+
+    private final DownloadRequestQueue mRequestQueue;
+    private final BandwidthLimiter mMeter;
+    private final boolean mAdaptive;
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private final int mSegmentCount;
+
+    private int mLimit;
+    private int mActive = 0;
+
+    /**
+     * Moving average of the throughput in bytes per second, -1 until the first sample
+     */
+    private double mEstimate = -1;
+    private double mBest = 0;
+    private double mBeforeIncrease = 0;
+    private boolean mIncreased = false;
+    private int mHold = 0;
+
+    private long mLastBytes;
+    private long mLastSampleMs;
+
+    /**
+     * Thread sampling the throughput while the queue runs, null while it is stopped
+     */
+    private Thread mSampler;
+
+    /**
+     * Sampling thread stopped last, it may still be exiting
+     */
+    private Thread mStoppedSampler;
+
+    ConcurrencyController(DownloadRequestQueue requestQueue, BandwidthLimiter meter,
+                          DownloadConfiguration configuration) {
+        mRequestQueue = requestQueue;
+        mMeter = meter;
+        mAdaptive = configuration.isAdaptiveConcurrency();
+        mMinLimit = mAdaptive ? configuration.getMinActiveDownloads() : configuration.getThreadPoolSize();
+        mMaxLimit = mAdaptive ? configuration.getMaxActiveDownloads() : configuration.getThreadPoolSize();
+        mSegmentCount = configuration.getSegmentCount();
+        mLimit = mMinLimit;
+    }
+
+    boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * Waits for a free slot, every slot taken must be given back with {@link #release()}.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (mActive >= mLimit) {
+            wait();
+        }
+        mActive++;
+    }
+
+    synchronized void release() {
+        mActive--;
+        notifyAll();
+    }
+
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Returns the number of segments of a large file, the configured count scaled down with
+     * the limit so a weak link isn't split further.
+     */
+    synchronized int getSegmentCount() {
+        if (!mAdaptive) {
+            return mSegmentCount;
+        }
+        return Math.max(1, mSegmentCount * mLimit / mMaxLimit);
+    }
+
+    /**
+     * Forgets the throughput measured so far, to be called when the network changes.
+     */
+    synchronized void reset() {
+        if (!mAdaptive) {
+            return;
+        }
+        Log.d(TAG, "Network changed, limit back to " + mMinLimit);
+        mEstimate = -1;
+        mBest = 0;
+        mIncreased = false;
+        mHold = 0;
+        setLimit(mMinLimit);
+    }
+
+    /**
+     * Starts sampling the throughput to adapt the limit, unless it already runs. Has no
+     * effect without adaptive concurrency.
+     */
+    synchronized void startSampling() {
+        if (!mAdaptive || mSampler != null) {
+            return;
+        }
+        mSampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSampling();
+            }
+        }, TAG);
+        mSampler.setDaemon(true);
+        mSampler.start();
+    }
+
+    /**
+     * Stops the sampling, it can be started again with {@link #startSampling()}.
+     */
+    synchronized void stopSampling() {
+        if (mSampler != null) {
+            mSampler.interrupt();
+            mStoppedSampler = mSampler;
+            mSampler = null;
+        }
+    }
+
+    synchronized boolean isSampling() {
+        return mSampler != null && mSampler.isAlive();
+    }
+
+    /**
+     * Waits for the sampling thread stopped by {@link #stopSampling()} to exit.
+     *
+     * @return false if it was still running after the timeout
+     */
+    boolean awaitSamplingStopped(long timeoutMs) throws InterruptedException {
+        Thread sampler;
+        synchronized (this) {
+            sampler = mStoppedSampler;
+        }
+        if (sampler == null) {
+            return true;
+        }
+        sampler.join(Math.max(1, timeoutMs));
+        return !sampler.isAlive();
+    }
+
+    private void runSampling() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        mLastBytes = mMeter.getTransferredBytes();
+        mLastSampleMs = DownloadDispatcher.now();
+        while (true) {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Sampling stopped");
+                return;
+            }
+            sample();
+        }
+    }
+
+    private void sample() {
+        long bytes = mMeter.getTransferredBytes();
+        long now = DownloadDispatcher.now();
+        double rate = (bytes - mLastBytes) * 1000.0 / Math.max(1, now - mLastSampleMs);
+        mLastBytes = bytes;
+        mLastSampleMs = now;
+        int running = mRequestQueue.getCurrentDownloadIds().size();
+        boolean waiting = !mRequestQueue.isEmpty();
+        synchronized (this) {
+            mEstimate = mEstimate < 0 ? rate : (mEstimate + rate) / 2;
+            boolean saturated = running >= mLimit && waiting;
+            if (mIncreased) {
+                mIncreased = false;
+                if (mEstimate < mBeforeIncrease * (1 + MIN_GAIN)) {
+                    Log.d(TAG, "No gain at " + mLimit + " downloads, " + (long) mEstimate + " B/s");
+                    setLimit(mLimit - 1);
+                    mHold = HOLD_SAMPLES;
+                    return;
+                }
+            } else if (saturated && mEstimate < mBest * DECREASE_THRESHOLD) {
+                Log.d(TAG, "Throughput fell to " + (long) mEstimate + " B/s");
+                setLimit(mLimit / 2);
+                mHold = HOLD_SAMPLES;
+                return;
+            }
+            mBest = Math.max(mBest, mEstimate);
+            if (mHold > 0) {
+                mHold--;
+            } else if (saturated && mLimit < mMaxLimit) {
+                mBeforeIncrease = mEstimate;
+                mIncreased = true;
+                setLimit(mLimit + 1);
+            }
+        }
+    }
+
+    /**
+     * Should be called holding the lock of the controller.
+     */
+    private void setLimit(int limit) {
+        limit = Math.max(mMinLimit, Math.min(mMaxLimit, limit));
+        if (limit != mLimit) {
+            Log.d(TAG, "Running " + limit + " downloads at once");
+            // The best throughput was measured at the old limit.
+            mBest = 0;
+            mLimit = limit;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.interfaces.RetryPolicy;
+
+import java.util.Random;
+
+/**
+ * Retry policy with a maximum number of attempts per error class and an exponential backoff
+ * with jitter between the attempts. The timeout grows after every attempt that timed out.
+ * An attempt that made progress clears the attempts counted so far but keeps the timeout
+ * that worked.
+ */
+public class DefaultRetryPolicy implements RetryPolicy {
+
+    public static final int DEFAULT_TIMEOUT_MS = 15000;
+    public static final int MAX_TIMEOUT_MS = 60000;
+    public static final float DEFAULT_TIMEOUT_MULTIPLIER = 1.5f;
+    public static final int DEFAULT_MAX_TIMEOUT_RETRIES = 5;
+    public static final int DEFAULT_MAX_NETWORK_RETRIES = 5;
+    public static final int DEFAULT_MAX_SERVER_RETRIES = 3;
+    public static final long DEFAULT_BASE_BACKOFF_MS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30000;
+
+    private static final Random sRandom = new Random();
+
+    private final int mInitialTimeoutMs;
+    private final float mTimeoutMultiplier;
+    private final int mMaxTimeoutRetries;
+    private final int mMaxNetworkRetries;
+    private final int mMaxServerRetries;
+    private final long mBaseBackoffMs;
+    private final long mMaxBackoffMs;
+
+    private int mCurrentTimeoutMs;
+    private int mRetryCount;
+    private int mTimeoutRetries;
+    private int mNetworkRetries;
+    private int mServerRetries;
+
+    public DefaultRetryPolicy() {
+        this(DEFAULT_TIMEOUT_MS, DEFAULT_TIMEOUT_MULTIPLIER, DEFAULT_MAX_TIMEOUT_RETRIES,
+                DEFAULT_MAX_NETWORK_RETRIES, DEFAULT_MAX_SERVER_RETRIES,
+                DEFAULT_BASE_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param initialTimeoutMs  connect and read timeout of the first attempt
+     * @param timeoutMultiplier factor the timeout grows by after an attempt timed out
+     * @param maxTimeoutRetries retries allowed after timeouts
+     * @param maxNetworkRetries retries allowed after connection errors
+     * @param maxServerRetries  retries allowed after 5xx responses
+     * @param baseBackoffMs     wait before the first retry, doubled for every next one
+     * @param maxBackoffMs      longest wait between two attempts
+     */
+    public DefaultRetryPolicy(int initialTimeoutMs, float timeoutMultiplier, int maxTimeoutRetries,
+                              int maxNetworkRetries, int maxServerRetries,
+                              long baseBackoffMs, long maxBackoffMs) {
+        mInitialTimeoutMs = initialTimeoutMs;
+        mTimeoutMultiplier = timeoutMultiplier;
+        mMaxTimeoutRetries = maxTimeoutRetries;
+        mMaxNetworkRetries = maxNetworkRetries;
+        mMaxServerRetries = maxServerRetries;
+        mBaseBackoffMs = baseBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+        reset();
+    }
+
+    @Override
+    public int getCurrentTimeout() {
+        return mCurrentTimeoutMs;
+    }
+
+    @Override
+    public int getCurrentRetryCount() {
+        return mRetryCount;
+    }
+
+    @Override
+    public synchronized long retry(int errorClass) {
+        switch (errorClass) {
+            case ERROR_TIMEOUT:
+                if (++mTimeoutRetries > mMaxTimeoutRetries) {
+                    return -1;
+                }
+                mCurrentTimeoutMs = (int) Math.min(MAX_TIMEOUT_MS, mCurrentTimeoutMs * mTimeoutMultiplier);
+                break;
+            case ERROR_NETWORK:
+                if (++mNetworkRetries > mMaxNetworkRetries) {
+                    return -1;
+                }
+                break;
+            case ERROR_SERVER:
+                if (++mServerRetries > mMaxServerRetries) {
+                    return -1;
+                }
+                break;
+            default:
+                return -1;
+        }
+        mRetryCount++;
+        return getBackoff(mRetryCount);
+    }
+
+    @Override
+    public synchronized void onProgress() {
+        mRetryCount = 0;
+        mTimeoutRetries = 0;
+        mNetworkRetries = 0;
+        mServerRetries = 0;
+    }
+
+    @Override
+    public synchronized void reset() {
+        onProgress();
+        mCurrentTimeoutMs = mInitialTimeoutMs;
+    }
+
+    /**
+     * Half of the exponential delay is kept and the other half is random, so downloads that
+     * failed together don't all come back at the same moment.
+     */
+    private long getBackoff(int retryCount) {
+        long delay = mMaxBackoffMs;
+        if (retryCount <= 30) {
+            delay = Math.min(mMaxBackoffMs, mBaseBackoffMs << (retryCount - 1));
+        }
+        long half = delay / 2;
+        synchronized (sRandom) {
+            return half + (long) (sRandom.nextDouble() * (delay - half));
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.database.DownloadStore;
+import com.media.downloadmanager.utils.ConnectionManager;
+import com.media.downloadmanager.utils.RedirectCache;
+import com.media.downloadmanager.utils.TokenBucket;
+
+/**
+ * Tunables for the download manager. Build one with {@link Builder} and pass it to
+ * {@link DownloadManager#getInstance(android.content.Context, DownloadConfiguration)}
+ * before the manager is first used.
+ */
+public class DownloadConfiguration {
+
+    /**
+     * Downloads run one at a time unless a larger pool is configured, parallel downloads
+     * multiply the bandwidth and the connections used.
+     */
+    public static final int DEFAULT_THREAD_POOL_SIZE = 1;
+
+    /**
+     * Upper bound for the dispatcher pool, more parallel downloads than this only
+     * splits the available bandwidth further.
+     */
+    public static final int MAX_THREAD_POOL_SIZE = 8;
+
+    /**
+     * Files are downloaded over a single connection unless segmentation is enabled.
+     */
+    public static final int DEFAULT_SEGMENT_COUNT = 1;
+
+    public static final int MAX_SEGMENT_COUNT = 8;
+
+    /**
+     * Files smaller than this are never split, the extra requests cost more than they save.
+     */
+    public static final long DEFAULT_MIN_SEGMENTED_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Progress is persisted at least once per this many downloaded bytes.
+     */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 1024 * 1024;
+
+    /**
+     * Progress is persisted at least this often while bytes keep coming in.
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 2000;
+
+    /**
+     * Progress of a download is delivered at most this often unless the percentage changed.
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 500;
+
+    /**
+     * Copies the response through a heap array, one read per write.
+     */
+    public static final int TRANSFER_ENGINE_STREAM = 1;
+
+    /**
+     * Copies the response through a channel into a direct buffer with positional writes.
+     */
+    public static final int TRANSFER_ENGINE_NIO = 2;
+
+    /**
+     * Reads the response and writes the file on two threads connected by a bounded ring of
+     * buffers, so slow storage doesn't stall the socket.
+     */
+    public static final int TRANSFER_ENGINE_PIPELINED = 3;
+
+    /**
+     * Buffers the network reader of the pipelined engine can be ahead of the disk writer.
+     */
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BUFFER_SIZE = MIN_BUFFER_SIZE;
+
+    /**
+     * Sizes the buffer pool to hold the buffers of every transfer that can run at once:
+     * dispatchers, times segments, times buffers per transfer, times the buffer size rounded
+     * up to its size class of the pool.
+     */
+    public static final long BUFFER_POOL_SIZE_AUTO = -1;
+
+    /**
+     * Memory the shared buffer pool keeps for reuse while the buffers are not borrowed.
+     */
+    public static final long DEFAULT_BUFFER_POOL_SIZE = BUFFER_POOL_SIZE_AUTO;
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = ConnectionManager.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = ConnectionManager.DEFAULT_KEEP_ALIVE_DURATION_MS;
+
+    /**
+     * Time the final url of a redirected download is reused for.
+     */
+    public static final long DEFAULT_REDIRECT_CACHE_TTL_MS = RedirectCache.DEFAULT_TTL_MS;
+
+    /**
+     * Queued requests keep a strict priority order unless aging is enabled.
+     */
+    public static final long DEFAULT_PRIORITY_AGING_INTERVAL_MS = 0;
+
+    /**
+     * Time a download runs before a request of higher priority can preempt it.
+     */
+    public static final long DEFAULT_MIN_PREEMPT_RUN_TIME_MS = 5000;
+
+    /**
+     * Downloads are not rate limited unless a limit is set.
+     */
+    public static final long DEFAULT_MAX_BANDWIDTH = TokenBucket.UNLIMITED;
+
+    /**
+     * The number of downloads running at the same time is fixed unless adaptive concurrency
+     * is enabled.
+     */
+    public static final int ADAPTIVE_CONCURRENCY_DISABLED = 0;
+
+    /**
+     * Downloads of the same host are not limited unless a limit is set, the hosts still take
+     * turns among the requests of the same priority.
+     */
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = IndexedDownloadQueue.NO_HOST_LIMIT;
+
+    private final int mThreadPoolSize;
+    private final int mSegmentCount;
+    private final long mMinSegmentedSize;
+    private final long mCheckpointBytes;
+    private final long mCheckpointIntervalMs;
+    private final long mProgressIntervalMs;
+    private final int mTransferEngine;
+    private final int mBufferSize;
+    private final int mPipelineDepth;
+    private final long mBufferPoolSize;
+    private final int mMaxConnectionsPerHost;
+    private final long mKeepAliveDurationMs;
+    private final long mRedirectCacheTtlMs;
+    private final long mPriorityAgingIntervalMs;
+    private final long mMinPreemptRunTimeMs;
+    private final long mMaxBandwidth;
+    private final int mMinActiveDownloads;
+    private final int mMaxActiveDownloads;
+    private final int mMaxDownloadsPerHost;
+    private final DownloadStore mDownloadStore;
+
+    private DownloadConfiguration(Builder builder) {
+        // Adaptive concurrency needs a dispatcher for each download it may run.
+        mThreadPoolSize = Math.max(builder.mThreadPoolSize, builder.mMaxActiveDownloads);
+        mSegmentCount = builder.mSegmentCount;
+        mMinSegmentedSize = builder.mMinSegmentedSize;
+        mCheckpointBytes = builder.mCheckpointBytes;
+        mCheckpointIntervalMs = builder.mCheckpointIntervalMs;
+        mProgressIntervalMs = builder.mProgressIntervalMs;
+        mTransferEngine = builder.mTransferEngine;
+        mBufferSize = builder.mBufferSize;
+        mPipelineDepth = builder.mPipelineDepth;
+        mBufferPoolSize = builder.mBufferPoolSize == BUFFER_POOL_SIZE_AUTO
+                ? getWorkingSetSize() : builder.mBufferPoolSize;
+        mMaxConnectionsPerHost = builder.mMaxConnectionsPerHost;
+        mKeepAliveDurationMs = builder.mKeepAliveDurationMs;
+        mRedirectCacheTtlMs = builder.mRedirectCacheTtlMs;
+        mPriorityAgingIntervalMs = builder.mPriorityAgingIntervalMs;
+        mMinPreemptRunTimeMs = builder.mMinPreemptRunTimeMs;
+        mMaxBandwidth = builder.mMaxBandwidth;
+        mMinActiveDownloads = builder.mMinActiveDownloads;
+        mMaxActiveDownloads = builder.mMaxActiveDownloads;
+        mMaxDownloadsPerHost = builder.mMaxDownloadsPerHost;
+        mDownloadStore = builder.mDownloadStore;
+    }
+
+    /**
+     * Returns the memory borrowed from the buffer pool when every dispatcher runs a transfer
+     * with all its segments, so the pool can serve them all without allocating.
+     */
+    private long getWorkingSetSize() {
+        // A pipelined transfer fills a ring of buffers while it writes one and reads another.
+        int buffersPerTransfer = mTransferEngine == TRANSFER_ENGINE_PIPELINED ? mPipelineDepth + 2 : 1;
+        // The size classes of the pool are powers of two.
+        long bufferCapacity = Integer.highestOneBit(mBufferSize - 1) << 1;
+        return (long) mThreadPoolSize * mSegmentCount * buffersPerTransfer * bufferCapacity;
+    }
+
+    public static DownloadConfiguration getDefault() {
+        return new Builder().build();
+    }
+
+    public int getThreadPoolSize() {
+        return mThreadPoolSize;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    public long getMinSegmentedSize() {
+        return mMinSegmentedSize;
+    }
+
+    public long getCheckpointBytes() {
+        return mCheckpointBytes;
+    }
+
+    public long getCheckpointIntervalMs() {
+        return mCheckpointIntervalMs;
+    }
+
+    public long getProgressIntervalMs() {
+        return mProgressIntervalMs;
+    }
+
+    public int getTransferEngine() {
+        return mTransferEngine;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public int getPipelineDepth() {
+        return mPipelineDepth;
+    }
+
+    public long getBufferPoolSize() {
+        return mBufferPoolSize;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    public long getKeepAliveDurationMs() {
+        return mKeepAliveDurationMs;
+    }
+
+    public long getRedirectCacheTtlMs() {
+        return mRedirectCacheTtlMs;
+    }
+
+    public long getPriorityAgingIntervalMs() {
+        return mPriorityAgingIntervalMs;
+    }
+
+    public long getMinPreemptRunTimeMs() {
+        return mMinPreemptRunTimeMs;
+    }
+
+    public long getMaxBandwidth() {
+        return mMaxBandwidth;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return mMinActiveDownloads != ADAPTIVE_CONCURRENCY_DISABLED;
+    }
+
+    public int getMinActiveDownloads() {
+        return mMinActiveDownloads;
+    }
+
+    public int getMaxActiveDownloads() {
+        return mMaxActiveDownloads;
+    }
+
+    public int getMaxDownloadsPerHost() {
+        return mMaxDownloadsPerHost;
+    }
+
+    /**
+     * Returns the storage backend of the downloads, null for the default Realm one.
+     */
+    public DownloadStore getDownloadStore() {
+        return mDownloadStore;
+    }
+
+    public static class Builder {
+
+        private int mThreadPoolSize = DEFAULT_THREAD_POOL_SIZE;
+        private int mSegmentCount = DEFAULT_SEGMENT_COUNT;
+        private long mMinSegmentedSize = DEFAULT_MIN_SEGMENTED_SIZE;
+        private long mCheckpointBytes = DEFAULT_CHECKPOINT_BYTES;
+        private long mCheckpointIntervalMs = DEFAULT_CHECKPOINT_INTERVAL_MS;
+        private long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+        private int mTransferEngine = TRANSFER_ENGINE_NIO;
+        private int mBufferSize = DEFAULT_BUFFER_SIZE;
+        private int mPipelineDepth = DEFAULT_PIPELINE_DEPTH;
+        private long mBufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+        private int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        private long mKeepAliveDurationMs = DEFAULT_KEEP_ALIVE_DURATION_MS;
+        private long mRedirectCacheTtlMs = DEFAULT_REDIRECT_CACHE_TTL_MS;
+        private long mPriorityAgingIntervalMs = DEFAULT_PRIORITY_AGING_INTERVAL_MS;
+        private long mMinPreemptRunTimeMs = DEFAULT_MIN_PREEMPT_RUN_TIME_MS;
+        private long mMaxBandwidth = DEFAULT_MAX_BANDWIDTH;
+        private int mMinActiveDownloads = ADAPTIVE_CONCURRENCY_DISABLED;
+        private int mMaxActiveDownloads = ADAPTIVE_CONCURRENCY_DISABLED;
+        private int mMaxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+        private DownloadStore mDownloadStore;
+
+        /**
+         * Set the number of downloads that can run at the same time.
+         *
+         * @param threadPoolSize number of dispatchers, between 1 and {@link #MAX_THREAD_POOL_SIZE}
+         */
+        public Builder setThreadPoolSize(int threadPoolSize) {
+            if (threadPoolSize < 1 || threadPoolSize > MAX_THREAD_POOL_SIZE) {
+                throw new IllegalArgumentException("Thread pool size should be between 1 and "
+                        + MAX_THREAD_POOL_SIZE);
+            }
+            mThreadPoolSize = threadPoolSize;
+            return this;
+        }
+
+        /**
+         * Download large files over several parallel Range requests. Servers that don't
+         * advertise "Accept-Ranges: bytes" or ignore the Range header are still downloaded
+         * over a single connection.
+         *
+         * @param segmentCount number of ranges a file is split in, 1 disables segmentation
+         */
+        public Builder setSegmentCount(int segmentCount) {
+            if (segmentCount < 1 || segmentCount > MAX_SEGMENT_COUNT) {
+                throw new IllegalArgumentException("Segment count should be between 1 and "
+                        + MAX_SEGMENT_COUNT);
+            }
+            mSegmentCount = segmentCount;
+            return this;
+        }
+
+        /**
+         * @param minSegmentedSize files smaller than this size in bytes are not segmented
+         */
+        public Builder setMinSegmentedSize(long minSegmentedSize) {
+            mMinSegmentedSize = minSegmentedSize;
+            return this;
+        }
+
+        /**
+         * Set how often the progress of a running download is written to the database.
+         * Progress is always written when a download is paused, queued, failed or completed.
+         * Whichever threshold is reached first triggers the write, 0 disables a threshold.
+         *
+         * @param checkpointBytes      bytes downloaded between two writes
+         * @param checkpointIntervalMs milliseconds between two writes
+         */
+        public Builder setCheckpoint(long checkpointBytes, long checkpointIntervalMs) {
+            if (checkpointBytes < 0 || checkpointIntervalMs < 0) {
+                throw new IllegalArgumentException("Checkpoint thresholds can't be negative");
+            }
+            mCheckpointBytes = checkpointBytes;
+            mCheckpointIntervalMs = checkpointIntervalMs;
+            return this;
+        }
+
+        /**
+         * Set the minimum time between two progress events of the same download. An event is
+         * also delivered whenever the progress moves to another whole percent.
+         */
+        public Builder setProgressInterval(long progressIntervalMs) {
+            if (progressIntervalMs < 0) {
+                throw new IllegalArgumentException("Progress interval can't be negative");
+            }
+            mProgressIntervalMs = progressIntervalMs;
+            return this;
+        }
+
+        /**
+         * Select how response bodies are copied to the disk.
+         *
+         * @param transferEngine {@link #TRANSFER_ENGINE_NIO}, {@link #TRANSFER_ENGINE_STREAM} or
+         *                       {@link #TRANSFER_ENGINE_PIPELINED}
+         */
+        public Builder setTransferEngine(int transferEngine) {
+            if (transferEngine != TRANSFER_ENGINE_NIO && transferEngine != TRANSFER_ENGINE_STREAM
+                    && transferEngine != TRANSFER_ENGINE_PIPELINED) {
+                throw new IllegalArgumentException("Unknown transfer engine " + transferEngine);
+            }
+            mTransferEngine = transferEngine;
+            return this;
+        }
+
+        /**
+         * Set the size of the buffer every transfer is copied through.
+         *
+         * @param bufferSize size in bytes, between {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}
+         */
+        public Builder setBufferSize(int bufferSize) {
+            if (bufferSize < MIN_BUFFER_SIZE || bufferSize > MAX_BUFFER_SIZE) {
+                throw new IllegalArgumentException("Buffer size should be between " + MIN_BUFFER_SIZE
+                        + " and " + MAX_BUFFER_SIZE);
+            }
+            mBufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Set how many filled buffers the network reader of the pipelined engine may queue
+         * before it waits for the disk writer.
+         */
+        public Builder setPipelineDepth(int pipelineDepth) {
+            if (pipelineDepth < 1) {
+                throw new IllegalArgumentException("Pipeline depth should be at least 1");
+            }
+            mPipelineDepth = pipelineDepth;
+            return this;
+        }
+
+        /**
+         * Set the memory the shared buffer pool may keep for reuse. By default it holds the
+         * buffers of every transfer that can run at once, a smaller pool saves memory while
+         * the downloads are idle but allocates new buffers on every download once the
+         * transfers need more than it keeps.
+         *
+         * @param bufferPoolSize size in bytes, 0 disables pooling,
+         *                       {@link #BUFFER_POOL_SIZE_AUTO} for the default
+         */
+        public Builder setBufferPoolSize(long bufferPoolSize) {
+            if (bufferPoolSize < 0 && bufferPoolSize != BUFFER_POOL_SIZE_AUTO) {
+                throw new IllegalArgumentException("Buffer pool size can't be negative");
+            }
+            mBufferPoolSize = bufferPoolSize;
+            return this;
+        }
+
+        /**
+         * Set the limits of the http connections. Segments of the same file count against
+         * the connections per host.
+         *
+         * @param maxConnectionsPerHost connections that can be open to the same host at once
+         * @param keepAliveDurationMs   time an idle connection is kept for the next request
+         *                              before it is closed. It is a setting of the platform
+         *                              connection pool shared by the whole process, only
+         *                              applied if the application didn't set the
+         *                              http.keepAliveDuration property itself
+         */
+        public Builder setConnectionLimits(int maxConnectionsPerHost, long keepAliveDurationMs) {
+            if (maxConnectionsPerHost < 1 || keepAliveDurationMs < 0) {
+                throw new IllegalArgumentException("Invalid connection limits");
+            }
+            mMaxConnectionsPerHost = maxConnectionsPerHost;
+            mKeepAliveDurationMs = keepAliveDurationMs;
+            return this;
+        }
+
+        /**
+         * Set how long the final url of a redirected download is reused by its retries and
+         * resumes.
+         *
+         * @param redirectCacheTtlMs time in milliseconds, 0 follows the redirects every time
+         */
+        public Builder setRedirectCacheTtl(long redirectCacheTtlMs) {
+            if (redirectCacheTtlMs < 0) {
+                throw new IllegalArgumentException("Redirect cache ttl can't be negative");
+            }
+            mRedirectCacheTtlMs = redirectCacheTtlMs;
+            return this;
+        }
+
+        /**
+         * Set the waiting time after which a queued request is served before the requests of
+         * the next priority level, so the low priority ones are not starved.
+         *
+         * @param agingIntervalMs time in milliseconds, 0 keeps a strict priority order
+         */
+        public Builder setPriorityAging(long agingIntervalMs) {
+            if (agingIntervalMs < 0) {
+                throw new IllegalArgumentException("Aging interval can't be negative");
+            }
+            mPriorityAgingIntervalMs = agingIntervalMs;
+            return this;
+        }
+
+        /**
+         * Set how long a download runs at least before it can be suspended for a request of
+         * higher priority. A preempted download resumes from its last checkpoint, a longer
+         * time trades latency of the urgent requests for less reconnecting.
+         *
+         * @param minRunTimeMs time in milliseconds, 0 preempts at once
+         */
+        public Builder setMinPreemptRunTime(long minRunTimeMs) {
+            if (minRunTimeMs < 0) {
+                throw new IllegalArgumentException("Minimum run time can't be negative");
+            }
+            mMinPreemptRunTimeMs = minRunTimeMs;
+            return this;
+        }
+
+        /**
+         * Set the rate all the downloads together are limited to, it can be changed later
+         * with {@link DownloadManager#setMaxBandwidth(long)}.
+         *
+         * @param bytesPerSecond rate limit, 0 for none
+         */
+        public Builder setMaxBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Bandwidth can't be negative");
+            }
+            mMaxBandwidth = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Let the number of downloads running at the same time follow the measured throughput,
+         * between the given bounds. It starts at the minimum after every network change and
+         * adds a download as long as that raises the throughput. The segment count of the
+         * large files scales with it. The thread pool is grown to the maximum if needed.
+         *
+         * @param minDownloads lowest number of downloads running at once, at least 1
+         * @param maxDownloads highest number, at most {@link #MAX_THREAD_POOL_SIZE}
+         */
+        public Builder setAdaptiveConcurrency(int minDownloads, int maxDownloads) {
+            if (minDownloads < 1 || minDownloads > maxDownloads || maxDownloads > MAX_THREAD_POOL_SIZE) {
+                throw new IllegalArgumentException("Concurrency bounds should be between 1 and "
+                        + MAX_THREAD_POOL_SIZE);
+            }
+            mMinActiveDownloads = minDownloads;
+            mMaxActiveDownloads = maxDownloads;
+            return this;
+        }
+
+        /**
+         * Set the number of downloads of the same host that can run at the same time, the
+         * other dispatchers serve the requests of other hosts meanwhile. Unlike
+         * {@link #setConnectionLimits(int, long)} it counts whole downloads, whatever their
+         * number of segments.
+         *
+         * @param maxDownloads downloads of a host running at once, 0 for no limit
+         */
+        public Builder setMaxDownloadsPerHost(int maxDownloads) {
+            if (maxDownloads < 0) {
+                throw new IllegalArgumentException("Downloads per host can't be negative");
+            }
+            mMaxDownloadsPerHost = maxDownloads;
+            return this;
+        }
+
+        /**
+         * Set where the downloads are saved, for example a
+         * {@link com.media.downloadmanager.database.JournalDownloadStore} instead of the
+         * default Realm database.
+         *
+         * @param downloadStore storage backend, null for the default one
+         */
+        public Builder setDownloadStore(DownloadStore downloadStore) {
+            mDownloadStore = downloadStore;
+            return this;
+        }
+
+        public DownloadConfiguration build() {
+            return new DownloadConfiguration(this);
+        }
+    }
+}
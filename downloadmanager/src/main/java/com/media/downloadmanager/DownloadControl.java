@@ -0,0 +1,131 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.utils.ConnectionManager;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Control block of one run of a download, shared by its dispatcher and the threads asking
+ * it to stop.
+ * <p>
+ * The state only moves from {@link #RUNNING} to one of the stop requests, and a request only
+ * replaces one of lower precedence, so a cancel always wins over a pause and a pause over a
+ * requeue. The transfer loop checks it with a single volatile read. Every request closes the
+ * connections of the download, a read blocked on the socket returns at once instead of
+ * waiting for the next packet.
+ * <p>
+ * A new block is created every time a dispatcher takes a request, a request made on the
+ * block of a finished run has no effect.
+ */
+final class DownloadControl implements ConnectionManager.StopSignal {
+
+    static final int RUNNING = 0;
+    static final int PREEMPT_REQUESTED = 1;
+    static final int REQUEUE_REQUESTED = 2;
+    static final int PAUSE_REQUESTED = 3;
+    static final int CANCEL_REQUESTED = 4;
+
+    /**
+     * Value of {@link #getPreemptAtMs()} while no preemption is scheduled
+     */
+    static final long NO_PREEMPTION = Long.MAX_VALUE;
+
+    private final String mDownloadId;
+    private final AtomicInteger mState = new AtomicInteger(RUNNING);
+    private volatile long mPreemptAtMs = NO_PREEMPTION;
+
+    /**
+     * Connections opened for the download, closed by a stop request
+     */
+    private final Set<HttpURLConnection> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+
+    DownloadControl(String downloadId) {
+        mDownloadId = downloadId;
+    }
+
+    String getDownloadId() {
+        return mDownloadId;
+    }
+
+    int getState() {
+        return mState.get();
+    }
+
+    @Override
+    public boolean isStopRequested() {
+        return mState.get() != RUNNING;
+    }
+
+    /**
+     * Asks the download to stop, unless a request of the same or higher precedence was
+     * already made.
+     *
+     * @param state one of the _REQUESTED constants
+     * @return true if the state changed
+     */
+    boolean request(int state) {
+        for (; ; ) {
+            int current = mState.get();
+            if (current >= state) {
+                return false;
+            }
+            if (mState.compareAndSet(current, state)) {
+                abortConnections();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Schedules the preemption of the download, the dispatcher applies it at its first
+     * checkpoint after the given time. An earlier schedule is kept.
+     *
+     * @param atMs time on the {@link DownloadDispatcher#now()} clock
+     */
+    synchronized void schedulePreemption(long atMs) {
+        if (atMs < mPreemptAtMs) {
+            mPreemptAtMs = atMs;
+        }
+    }
+
+    void cancelPreemption() {
+        mPreemptAtMs = NO_PREEMPTION;
+    }
+
+    long getPreemptAtMs() {
+        return mPreemptAtMs;
+    }
+
+    boolean isPreemptionScheduled() {
+        return mPreemptAtMs != NO_PREEMPTION || mState.get() == PREEMPT_REQUESTED;
+    }
+
+    /**
+     * Registers a connection of the download. It is closed at once if the download was
+     * already asked to stop.
+     */
+    void attach(HttpURLConnection conn) {
+        mConnections.add(conn);
+        if (isStopRequested()) {
+            abortConnections();
+        }
+    }
+
+    void detach(HttpURLConnection conn) {
+        if (conn != null) {
+            mConnections.remove(conn);
+        }
+    }
+
+    private void abortConnections() {
+        for (HttpURLConnection conn : mConnections) {
+            mConnections.remove(conn);
+            conn.disconnect();
+        }
+    }
+}
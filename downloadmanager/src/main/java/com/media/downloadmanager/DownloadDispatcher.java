@@ -5,30 +5,28 @@ import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.media.downloadmanager.database.DbManager;
 import com.media.downloadmanager.interfaces.DownloadError;
-import com.media.downloadmanager.interfaces.DownloadStatusListener;
 import com.media.downloadmanager.interfaces.IDownloadState;
-import com.media.downloadmanager.model.DownloadRequest;
+import com.media.downloadmanager.interfaces.RetryPolicy;
+import com.media.downloadmanager.model.DownloadInfo;
+import com.media.downloadmanager.utils.BufferPool;
+import com.media.downloadmanager.utils.ConnectionManager;
+import com.media.downloadmanager.utils.RedirectCache;
 
 import org.apache.http.conn.ConnectTimeoutException;
 
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
-import java.util.concurrent.BlockingQueue;
-
-import io.realm.Realm;
-import io.realm.RealmObject;
 
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
@@ -43,8 +41,7 @@ public class DownloadDispatcher extends Thread {
     /**
      * The queue of download requests to service.
      */
-    private final BlockingQueue<DownloadRequest> mQueue;
-    private final ArrayList<DownloadRequest> mDownloadList;
+    private final IndexedDownloadQueue mQueue;
 
     /**
      * Used to tell the dispatcher to die.
@@ -54,12 +51,12 @@ public class DownloadDispatcher extends Thread {
     /**
      * Current Download request that this dispatcher is working
      */
-    private DownloadRequest mRequest;
+    private DownloadInfo mRequest;
 
     /**
-     * The buffer size used to stream the data
+     * Retry policy of the current download, the default one if the request has none
      */
-    public final int BUFFER_SIZE = 4096;
+    private RetryPolicy mRetryPolicy;
 
     /**
      * How many times redirects happened during a download request.
@@ -67,17 +64,23 @@ public class DownloadDispatcher extends Thread {
     private int mRedirectionCount = 0;
 
     /**
-     * Listener for updating the download status to ui
+     * Delivers the download status to ui, shared by all the dispatchers
      */
-    private DownloadStatusListener mDownloadStatusListener;
+    private final DownloadStatusDelivery mStatusDelivery;
 
     /**
      * The maximum number of redirects.
      */
-    public final int MAX_REDIRECTS = 0;
+    public final int MAX_REDIRECTS = 5;
 
     private final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
     private final int HTTP_TEMP_REDIRECT = 307;
+    private final int HTTP_PERMANENT_REDIRECT = 308;
+
+    /**
+     * Url the last attempt was redirected to, null if it wasn't
+     */
+    private String mRedirectUrl;
 
     private long mContentLength;
     private long mCurrentBytes;
@@ -88,59 +91,184 @@ public class DownloadDispatcher extends Thread {
      */
     public static final String TAG = "DownloadDispatcher";
 
-    private String mCurrentDownloadId = "";
-    private String mPauseId = "";
-    private DownloadRequest mDbInstance;
-    private Realm mRealmInstance;
-    private boolean mShouldRetry = false;
-    private String mQueueId = "";
-    private String mCancelId = "";
+    private volatile String mCurrentDownloadId = "";
+    private DownloadInfo mDbInstance;
+
+    /**
+     * Set while the dispatcher holds a slot of the {@link ConcurrencyController}, it can only
+     * take a request from the queue then
+     */
+    private volatile boolean mHoldsSlot = false;
+
+    /**
+     * Host the current download was queued under, null while idle
+     */
+    private volatile String mCurrentHost;
+
+    /**
+     * Control block of the current download, checked by the transfer to know when to stop
+     */
+    private volatile DownloadControl mControl = new DownloadControl("");
+
+    /**
+     * Priority the current download was taken with and the time it started, used to pick
+     * the download to preempt
+     */
+    private volatile int mCurrentPriority = 0;
+    private volatile long mStartedAtMs = 0;
+
+    /**
+     * Place the current download had in the queue, it goes back there if it is preempted
+     */
+    private IndexedDownloadQueue.Taken mTaken;
+
+    /**
+     * Set once the current download stopped for a preemption, it is put back in the queue.
+     */
+    private boolean mPreempted = false;
+
+    private final DownloadConfiguration mConfiguration;
+
+    /**
+     * Decides when the progress of the current download is written to the database
+     */
+    private final CheckpointPolicy mCheckpointPolicy;
+
+    /**
+     * Copies the response bodies to the disk, reused for every download of this dispatcher
+     */
+    private final TransferEngine mTransferEngine;
+
+    /**
+     * Transfer buffers shared with the other dispatchers and the segment workers
+     */
+    private final BufferPool mBufferPool;
+
+    /**
+     * Rate limits shared with the other dispatchers and the segment workers
+     */
+    private final BandwidthLimiter mBandwidthLimiter;
+
+    /**
+     * Gives the slot this dispatcher needs to run a download and the segment count
+     */
+    private final ConcurrencyController mConcurrency;
+
+    /**
+     * Set once a server ignored a Range request, the current request is then downloaded
+     * over a single connection.
+     */
+    private boolean mSegmentationDisabled = false;
+
+    /**
+     * Set once the response body of the current connection was read to the end
+     */
+    private boolean mConnectionReusable = false;
+
+    /**
+     * Error class of the failed attempt to give to the retry policy, 0 if there is nothing
+     * to retry. The error code and message are reported if the policy gives up.
+     */
+    private int mRetryErrorClass = 0;
+    private int mRetryErrorCode;
+    private String mRetryErrorMessage;
+
+    /**
+     * Set once the current attempt wrote some bytes, its failure then clears the attempts
+     * counted by the retry policy
+     */
+    private boolean mAttemptProgress = false;
+
+    /**
+     * Longest sleep while waiting for a retry, before checking again if the download was
+     * paused, queued or cancelled.
+     */
+    private static final long RETRY_WAIT_SLICE_MS = 250;
 
     /**
      * Constructor take the dependency (DownloadRequest queue) that all the Dispatcher needs
      */
-    public DownloadDispatcher(BlockingQueue<DownloadRequest> queue,
-                              ArrayList<DownloadRequest> queueList) {
+    public DownloadDispatcher(IndexedDownloadQueue queue,
+                              DownloadConfiguration configuration,
+                              DownloadStatusDelivery statusDelivery,
+                              BufferPool bufferPool,
+                              BandwidthLimiter bandwidthLimiter,
+                              ConcurrencyController concurrency) {
         mQueue = queue;
-        mDownloadList = queueList;
+        mBufferPool = bufferPool;
+        mBandwidthLimiter = bandwidthLimiter;
+        mConcurrency = concurrency;
+        mStatusDelivery = statusDelivery;
+        mConfiguration = configuration;
+        mCheckpointPolicy = CheckpointPolicy.from(configuration);
+        mTransferEngine = TransferEngine.create(configuration, bufferPool);
     }
 
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        while (true) {
-            try {
-                Log.d(TAG, "Waiting for object");
-                clearVariables();
-                mRequest = mQueue.take();
-                mCurrentDownloadId = mRequest.getArticleId();
-                mDownloadList.remove(mRequest);
-
-                Log.d(TAG, "Download initiated for " + mCurrentDownloadId);
-                getDbObject();
-                updateDownloadInProgress();
-                executeDownload(mRequest.getUrl());
-                mRealmInstance.close();
-            } catch (InterruptedException e) {
-                Log.d(TAG, "Thread Interrupted");
-                if (mCurrentDownloadId != null && !mCurrentDownloadId.isEmpty()) {
-                    updateDownloadQueued();
+        // The reads of the downloads share one session of the store until the dispatcher quits.
+        DbManager.getInstance().openSession();
+        try {
+            while (!mQuit) {
+                try {
+                    Log.d(TAG, "Waiting for object");
+                    clearVariables();
+                    mConcurrency.acquire();
+                    mHoldsSlot = true;
+                    try {
+                        // Other dispatchers and the queue look up the current id to dedup requests,
+                        // so the hand over from the queue to this dispatcher is done atomically.
+                        synchronized (mQueue) {
+                            IndexedDownloadQueue.Taken taken = mQueue.takeEntry();
+                            mRequest = taken.mRequest;
+                            mTaken = taken;
+                            mCurrentHost = IndexedDownloadQueue.hostOf(mRequest.getUrl());
+                            mCurrentPriority = mRequest.getPriority();
+                            mStartedAtMs = now();
+                            mControl = new DownloadControl(mRequest.getArticleId());
+                            mCurrentDownloadId = mRequest.getArticleId();
+                        }
+
+                        Log.d(TAG, "Download initiated for " + mCurrentDownloadId);
+                        getDbObject();
+                        updateDownloadInProgress();
+                        executeWithRetries();
+                        mStatusDelivery.release(mCurrentDownloadId);
+                        if (mPreempted) {
+                            requeuePreempted();
+                        }
+                    } finally {
+                        mHoldsSlot = false;
+                        if (mCurrentHost != null) {
+                            mQueue.finished(mCurrentHost);
+                            mCurrentHost = null;
+                        }
+                        mConcurrency.release();
+                    }
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Thread Interrupted");
+                    if (mCurrentDownloadId != null && !mCurrentDownloadId.isEmpty()) {
+                        updateDownloadQueued();
+                    }
                 }
             }
+        } finally {
+            DbManager.getInstance().closeSession();
         }
+        Log.d(TAG, "Dispatcher quit");
     }
 
     private void clearVariables() {
         mCurrentDownloadId = "";
-        mQueueId = "";
-        mQuit = false;
         mContentLength = 0l;
-        mPauseId = "";
-        mCancelId = "";
+        mPreempted = false;
         mCurrentBytes = 0l;
         mRedirectionCount = 0;
-        mShouldRetry = false;
+        mRetryErrorClass = 0;
         shouldAllowRedirects = true;
+        mSegmentationDisabled = false;
+        mDbInstance = null;
     }
 
     public void quit() {
@@ -148,8 +276,15 @@ public class DownloadDispatcher extends Thread {
         interrupt();
     }
 
+    /**
+     * Returns true once the dispatcher was asked to quit, it can't take new requests.
+     */
+    boolean isQuitting() {
+        return mQuit;
+    }
+
     private boolean shoudResumeDownload() {
-        return isDestinationFilePresent() && mDbInstance.getDownloadedBytes() > 0;
+        return mDbInstance != null && isDestinationFilePresent() && mDbInstance.getDownloadedBytes() > 0;
     }
 
     private boolean isDestinationFilePresent() {
@@ -159,11 +294,107 @@ public class DownloadDispatcher extends Thread {
     }
 
 
+    /**
+     * Runs the download until it succeeds, fails for good or is stopped. Between two attempts
+     * the retry policy gives the wait, and the next attempt resumes from the last checkpoint.
+     */
+    private void executeWithRetries() throws InterruptedException {
+        mRetryPolicy = mRequest.getRetryPolicy() != null
+                ? mRequest.getRetryPolicy() : new DefaultRetryPolicy();
+        RetryPolicy retryPolicy = mRetryPolicy;
+        retryPolicy.reset();
+        String downloadUrl = getDownloadUrl();
+        while (true) {
+            mRetryErrorClass = 0;
+            mRedirectUrl = null;
+            mAttemptProgress = false;
+            executeDownload(downloadUrl);
+            if (mRetryErrorClass != 0 && handleStopRequest()) {
+                // The attempt failed because its connection was closed by the stop request.
+                return;
+            }
+            if (mRedirectUrl != null) {
+                downloadUrl = mRedirectUrl;
+                continue;
+            }
+            if (mRetryErrorClass == 0) {
+                return;
+            }
+            if (mAttemptProgress) {
+                retryPolicy.onProgress();
+            }
+            long delay = retryPolicy.retry(mRetryErrorClass);
+            if (delay < 0) {
+                updateDownloadFailed(mRetryErrorCode, mRetryErrorMessage);
+                return;
+            }
+            Log.d(TAG, "Retry " + retryPolicy.getCurrentRetryCount() + " of Download Id "
+                    + mCurrentDownloadId + " in " + delay + " ms");
+            if (!waitForRetry(delay)) {
+                return;
+            }
+            mCurrentBytes = 0;
+            mContentLength = 0;
+            mRedirectionCount = 0;
+            downloadUrl = getDownloadUrl();
+            getDbObject();
+        }
+    }
+
+    /**
+     * Returns the url to connect to, the one the request was last redirected to if it is
+     * still cached.
+     */
+    private String getDownloadUrl() {
+        String resolvedUrl = RedirectCache.getInstance().get(mRequest.getUrl());
+        if (resolvedUrl != null) {
+            Log.d(TAG, "Using cached redirect " + resolvedUrl);
+            return resolvedUrl;
+        }
+        return mRequest.getUrl();
+    }
+
+    /**
+     * Sleeps before the next attempt, waking up regularly to honour a stop request.
+     *
+     * @return false if the download was stopped while waiting
+     */
+    private boolean waitForRetry(long delayMs) throws InterruptedException {
+        long deadline = System.nanoTime() / 1000000 + delayMs;
+        long remaining = delayMs;
+        while (remaining > 0) {
+            checkPreemption();
+            if (handleStopRequest()) {
+                return false;
+            }
+            Thread.sleep(Math.min(remaining, RETRY_WAIT_SLICE_MS));
+            remaining = deadline - System.nanoTime() / 1000000;
+        }
+        return !handleStopRequest();
+    }
+
+    /**
+     * Records a failed attempt, the retry policy decides if another one is made.
+     */
+    private void retryLater(int errorClass, int errorCode, String errorMsg) {
+        Log.d(TAG, "Attempt failed " + errorCode + "  " + errorMsg);
+        mRetryErrorClass = errorClass;
+        mRetryErrorCode = errorCode;
+        mRetryErrorMessage = errorMsg;
+    }
+
     private void executeDownload(String downloadUrl) {
         URL url;
+        if (!mSegmentationDisabled && SegmentedDownloader.hasSavedState(mRequest.getDestinationPath())) {
+            resumeSegmentedDownload(downloadUrl);
+            return;
+        }
         if (shoudResumeDownload()) {
-            mCurrentBytes = mRequest.getDownloadedBytes();
-            mContentLength = mRequest.getTotalBytes();
+            // Resume from the last checkpoint, anything written after it is truncated.
+            mCurrentBytes = mDbInstance.getDownloadedBytes();
+            mContentLength = mDbInstance.getTotalBytes();
+            mRequest = mRequest.withDownloadedBytes(mCurrentBytes);
+            mRequest = mRequest.withTotalBytes(mContentLength);
             resumeDownload(downloadUrl);
             return;
         }
@@ -176,12 +407,14 @@ public class DownloadDispatcher extends Thread {
         }
 
         HttpURLConnection conn = null;
+        mConnectionReusable = false;
 
         try {
-            conn = (HttpURLConnection) url.openConnection();
+            conn = ConnectionManager.getInstance().open(url, mControl);
+            mControl.attach(conn);
             conn.setInstanceFollowRedirects(false);
-            /*conn.setConnectTimeout(mRequest.getRetryPolicy().getCurrentTimeout());
-            conn.setReadTimeout(mRequest.getRetryPolicy().getCurrentTimeout());*/
+            conn.setConnectTimeout(mRetryPolicy.getCurrentTimeout());
+            conn.setReadTimeout(mRetryPolicy.getCurrentTimeout());
 
             HashMap<String, String> customHeaders = new HashMap<>();
             if (customHeaders != null) {
@@ -205,9 +438,24 @@ public class DownloadDispatcher extends Thread {
                 case HTTP_PARTIAL:
                 case HTTP_OK:
                     shouldAllowRedirects = false;
+                    RedirectCache.getInstance().put(mRequest.getUrl(), downloadUrl);
                     if (readResponseHeaders(conn) == 1) {
-                        mRequest.setTotalBytes(mContentLength);
-                        transferData(conn);
+                        mRequest = mRequest.withTotalBytes(mContentLength);
+                        if (shouldSegmentDownload(conn)) {
+                            // Give the connection and its host permit back before the
+                            // segments open their own.
+                            String validator = SegmentedDownloader.getValidator(conn);
+                            mControl.detach(conn);
+                            ConnectionManager.getInstance().release(conn, false);
+                            conn = null;
+                            downloadSegmented(new SegmentedDownloader(url,
+                                    new File(mRequest.getDestinationPath()), mContentLength,
+                                    mConcurrency.getSegmentCount(), validator));
+                        } else {
+                            ResumeState.save(mRequest.getDestinationPath(),
+                                    SegmentedDownloader.getValidator(conn));
+                            transferData(conn);
+                        }
                     } else {
                         updateDownloadFailed(DownloadError.UNKNOWN_SIZE, "Transfer-Encoding not found as well as can't know size of download, giving up");
                     }
@@ -216,41 +464,37 @@ public class DownloadDispatcher extends Thread {
                 case HTTP_MOVED_TEMP:
                 case HTTP_SEE_OTHER:
                 case HTTP_TEMP_REDIRECT:
-                    // Take redirect url and call executeDownload recursively until
-                    // MAX_REDIRECT is reached.
-                    attemptRetryOnHTTPException();
+                case HTTP_PERMANENT_REDIRECT:
+                    followRedirect(conn, url);
                     break;
                 case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
                     updateDownloadFailed(HTTP_REQUESTED_RANGE_NOT_SATISFIABLE, conn.getResponseMessage());
                     break;
                 case HTTP_UNAVAILABLE:
-                    updateDownloadFailed(HTTP_UNAVAILABLE, conn.getResponseMessage());
+                    retryLater(RetryPolicy.ERROR_SERVER, HTTP_UNAVAILABLE, conn.getResponseMessage());
                     break;
                 case HTTP_INTERNAL_ERROR:
-                    updateDownloadFailed(HTTP_INTERNAL_ERROR, conn.getResponseMessage());
+                    retryLater(RetryPolicy.ERROR_SERVER, HTTP_INTERNAL_ERROR, conn.getResponseMessage());
                     break;
                 default:
+                    if (responseCode >= 400 && responseCode < 500 && dropCachedRedirect(downloadUrl)) {
+                        break;
+                    }
                     updateDownloadFailed(DownloadError.HTTP_ERROR, "Unhandled HTTP response:" + responseCode + " message:" + conn.getResponseMessage());
                     break;
             }
         } catch (SocketTimeoutException e) {
             e.printStackTrace();
-            // Retry.
-            attemptRetryOnHTTPException();
+            retryLater(RetryPolicy.ERROR_TIMEOUT, DownloadError.TIMEOUT, e.getMessage());
         } catch (ConnectTimeoutException e) {
             e.printStackTrace();
-            attemptRetryOnHTTPException();
+            retryLater(RetryPolicy.ERROR_TIMEOUT, DownloadError.TIMEOUT, e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
-            attemptRetryOnHTTPException();
+            retryLater(RetryPolicy.ERROR_NETWORK, DownloadError.NETWORK_ERROR, e.getMessage());
         } finally {
-            if (mShouldRetry) {
-                executeDownload(downloadUrl);
-            } else {
-                if (conn != null) {
-                    conn.disconnect();
-                }
-            }
+            mControl.detach(conn);
+            ConnectionManager.getInstance().release(conn, mConnectionReusable);
         }
     }
 
@@ -265,15 +509,17 @@ public class DownloadDispatcher extends Thread {
         }
 
         HttpURLConnection conn = null;
+        mConnectionReusable = false;
 
         try {
             if (url.getProtocol().toLowerCase().equals("https")) {
                 //trustAllHosts();
             }
-            conn = (HttpURLConnection) url.openConnection();
+            conn = ConnectionManager.getInstance().open(url, mControl);
+            mControl.attach(conn);
             conn.setInstanceFollowRedirects(false);
-            // conn.setConnectTimeout(mRequest.getRetryPolicy().getCurrentTimeout());
-            // conn.setReadTimeout(mRequest.getRetryPolicy().getCurrentTimeout());
+            conn.setConnectTimeout(mRetryPolicy.getCurrentTimeout());
+            conn.setReadTimeout(mRetryPolicy.getCurrentTimeout());
 
             HashMap<String, String> customHeaders = new HashMap<String, String>();
             ;
@@ -307,6 +553,11 @@ public class DownloadDispatcher extends Thread {
             } else {
                 conn.addRequestProperty("Range", "bytes=" + mRequest.getDownloadedBytes() + "-");
             }
+            // A file that changed since is sent in full instead of the range.
+            String validator = ResumeState.load(mRequest.getDestinationPath());
+            if (!validator.isEmpty()) {
+                conn.addRequestProperty("If-Range", validator);
+            }
 
             // Status Connecting is set here before
             // urlConnection is trying to connect to destination.
@@ -320,9 +571,34 @@ public class DownloadDispatcher extends Thread {
                     + responseCode);
 
             switch (responseCode) {
-                case HTTP_PARTIAL:
                 case HTTP_OK:
+                    // The Range header was ignored or the file changed, the whole file is
+                    // coming again.
+                    Log.d(TAG, "Range not honoured, downloading from the start");
+                    mCurrentBytes = 0;
+                    mRequest = mRequest.withDownloadedBytes(0);
+                    if (readResponseHeaders(conn) == 1) {
+                        mRequest = mRequest.withTotalBytes(mContentLength);
+                    }
+                    ResumeState.save(mRequest.getDestinationPath(), SegmentedDownloader.getValidator(conn));
+                    // fall through
+                case HTTP_PARTIAL:
+                    if (responseCode == HTTP_PARTIAL && !ResumeState.isRangeFrom(
+                            conn.getHeaderField("Content-Range"), mCurrentBytes, mContentLength)) {
+                        // Not the range asked for, the bytes can't follow the ones on disk.
+                        Log.d(TAG, "Unexpected range " + conn.getHeaderField("Content-Range")
+                                + ", downloading from the start");
+                        mControl.detach(conn);
+                        ConnectionManager.getInstance().release(conn, false);
+                        conn = null;
+                        cleanupDestination();
+                        mRequest = mRequest.withDownloadedBytes(0);
+                        mCurrentBytes = 0;
+                        executeDownload(downloadUrl);
+                        return;
+                    }
                     shouldAllowRedirects = false;
+                    RedirectCache.getInstance().put(mRequest.getUrl(), downloadUrl);
                     if (isResponseContentPresent(conn) == 1) {
                         // readResponseHeaders(conn);
                         transferData(conn);
@@ -334,41 +610,143 @@ public class DownloadDispatcher extends Thread {
                 case HTTP_MOVED_TEMP:
                 case HTTP_SEE_OTHER:
                 case HTTP_TEMP_REDIRECT:
-                    // Take redirect url and call executeDownload recursively until
-                    // MAX_REDIRECT is reached.
-                    attemptRetryOnHTTPException();
+                case HTTP_PERMANENT_REDIRECT:
+                    followRedirect(conn, url);
                     break;
                 case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
                     updateDownloadFailed(HTTP_REQUESTED_RANGE_NOT_SATISFIABLE, conn.getResponseMessage());
                     break;
                 case HTTP_UNAVAILABLE:
-                    updateDownloadFailed(HTTP_UNAVAILABLE, conn.getResponseMessage());
+                    retryLater(RetryPolicy.ERROR_SERVER, HTTP_UNAVAILABLE, conn.getResponseMessage());
                     break;
                 case HTTP_INTERNAL_ERROR:
-                    updateDownloadFailed(HTTP_INTERNAL_ERROR, conn.getResponseMessage());
+                    retryLater(RetryPolicy.ERROR_SERVER, HTTP_INTERNAL_ERROR, conn.getResponseMessage());
                     break;
                 default:
+                    if (responseCode >= 400 && responseCode < 500 && dropCachedRedirect(downloadUrl)) {
+                        break;
+                    }
                     updateDownloadFailed(DownloadError.HTTP_ERROR, "Unhandled HTTP response:" + responseCode + " message:" + conn.getResponseMessage());
                     break;
             }
         } catch (SocketTimeoutException e) {
             e.printStackTrace();
-            // Retry.
-            attemptRetryOnHTTPException();
+            retryLater(RetryPolicy.ERROR_TIMEOUT, DownloadError.TIMEOUT, e.getMessage());
         } catch (ConnectTimeoutException e) {
             e.printStackTrace();
-            attemptRetryOnHTTPException();
+            retryLater(RetryPolicy.ERROR_TIMEOUT, DownloadError.TIMEOUT, e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
-            attemptRetryOnHTTPException();
+            retryLater(RetryPolicy.ERROR_NETWORK, DownloadError.NETWORK_ERROR, e.getMessage());
         } finally {
-            if (mShouldRetry) {
-                executeDownload(downloadUrl);
-            } else {
-                if (conn != null) {
-                    conn.disconnect();
+            mControl.detach(conn);
+            ConnectionManager.getInstance().release(conn, mConnectionReusable);
+        }
+    }
+
+    /**
+     * Returns true if the response is for a file big enough to be split and the server
+     * advertises support for byte ranges.
+     */
+    private boolean shouldSegmentDownload(HttpURLConnection conn) {
+        return !mSegmentationDisabled
+                && mConcurrency.getSegmentCount() > 1
+                && mContentLength >= mConfiguration.getMinSegmentedSize()
+                && "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+    }
+
+    private void resumeSegmentedDownload(String downloadUrl) {
+        Log.d(TAG, "resume segmented Download..");
+        URL url;
+        try {
+            url = new URL(downloadUrl);
+        } catch (MalformedURLException e) {
+            updateDownloadFailed(DownloadError.MALFORMED_URL, "MalformedURLException: URI passed is malformed.");
+            return;
+        }
+        SegmentedDownloader downloader = SegmentedDownloader.restore(url, mRequest.getDestinationPath());
+        if (downloader == null) {
+            // The saved ranges are unusable, start over from scratch.
+            cleanupDestination();
+            executeDownload(downloadUrl);
+            return;
+        }
+        mContentLength = downloader.getContentLength();
+        mRequest = mRequest.withTotalBytes(mContentLength);
+        downloadSegmented(downloader);
+    }
+
+    private void downloadSegmented(SegmentedDownloader downloader) {
+        Log.d(TAG, "Segmented download of " + mContentLength + " bytes for Download Id " + mRequest.getArticleId());
+        downloader.setTimeout(mRetryPolicy.getCurrentTimeout());
+        int result = downloader.download(new SegmentedDownloader.Listener() {
+            @Override
+            public boolean isActive() {
+                return !isStopRequested();
+            }
+
+            @Override
+            public void onProgress(long downloadedBytes) {
+                if (downloadedBytes > mCurrentBytes) {
+                    mAttemptProgress = true;
                 }
+                mCurrentBytes = downloadedBytes;
+                updateDownloadProgress((int) ((mCurrentBytes * 100) / mContentLength), mCurrentBytes);
             }
+
+            @Override
+            public void onCheckpoint(long downloadedBytes) {
+                updateDownloadDatabaseStatus(downloadedBytes);
+                checkPreemption();
+            }
+
+            @Override
+            public void onConnectionOpened(HttpURLConnection conn) {
+                mControl.attach(conn);
+            }
+
+            @Override
+            public void onConnectionReleased(HttpURLConnection conn) {
+                mControl.detach(conn);
+            }
+
+            @Override
+            public BandwidthLimiter.Pacer newPacer() {
+                return mBandwidthLimiter.newPacer(mCurrentDownloadId, mCurrentHost);
+            }
+        }, mConfiguration, mBufferPool);
+        // The downloader checkpoints its ranges before returning.
+        mCurrentBytes = downloader.getDownloadedBytes();
+        switch (result) {
+            case SegmentedDownloader.RESULT_COMPLETE:
+                updateDownloadDatabaseStatus(mCurrentBytes);
+                updateDownloadComplete();
+                break;
+            case SegmentedDownloader.RESULT_STOPPED:
+                updateDownloadDatabaseStatus(mCurrentBytes);
+                if (!handleStopRequest()) {
+                    updateDownloadQueued();
+                }
+                break;
+            case SegmentedDownloader.RESULT_CHANGED:
+            case SegmentedDownloader.RESULT_RANGE_NOT_SUPPORTED:
+                // A file that changed is downloaded again over a single connection too, so a
+                // server giving out a new validator on every response can't loop forever.
+                Log.d(TAG, "Range requests not usable, downloading over a single connection");
+                mSegmentationDisabled = true;
+                cleanupDestination();
+                mRequest = mRequest.withDownloadedBytes(0);
+                mCurrentBytes = 0;
+                executeDownload(getDownloadUrl());
+                break;
+            case SegmentedDownloader.RESULT_TIMED_OUT:
+                updateDownloadDatabaseStatus(mCurrentBytes);
+                retryLater(RetryPolicy.ERROR_TIMEOUT, DownloadError.TIMEOUT, "Segment timed out");
+                break;
+            default:
+                updateDownloadDatabaseStatus(mCurrentBytes);
+                retryLater(RetryPolicy.ERROR_NETWORK, DownloadError.NETWORK_ERROR, "Segmented download failed");
+                break;
         }
     }
 
@@ -393,8 +771,7 @@ public class DownloadDispatcher extends Thread {
 
     private void transferData(HttpURLConnection conn) {
         InputStream in = null;
-        OutputStream out = null;
-        FileDescriptor outFd = null;
+        RandomAccessFile out = null;
         try {
             try {
                 in = conn.getInputStream();
@@ -411,8 +788,9 @@ public class DownloadDispatcher extends Thread {
             // If Destination file couldn't be created. Abort the data transfer.
             if (!errorCreatingDestinationFile) {
                 try {
-                    out = new FileOutputStream(destinationFile, true);
-                    outFd = ((FileOutputStream) out).getFD();
+                    out = new RandomAccessFile(destinationFile, "rw");
+                    // Drop whatever was written after the checkpoint we resume from.
+                    out.getChannel().truncate(mCurrentBytes);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -423,7 +801,7 @@ public class DownloadDispatcher extends Thread {
                     updateDownloadFailed(DownloadError.FILE_ERROR, "Error in writing download contents to the destination file");
                 } else {
                     // Start streaming data
-                    transferData(in, out);
+                    transferData(in, out.getChannel());
                 }
             }
 
@@ -436,101 +814,165 @@ public class DownloadDispatcher extends Thread {
                 e.printStackTrace();
             }
             try {
-                if (out != null) {
-                    out.flush();
-                }
-                if (outFd != null) {
-                    outFd.sync();
-                }
+                if (out != null) out.close();
             } catch (IOException e) {
                 e.printStackTrace();
-            } finally {
-                try {
-                    if (out != null) out.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
             }
         }
     }
 
-    private void transferData(InputStream in, OutputStream out) {
-        final byte data[] = new byte[BUFFER_SIZE];
+    private void transferData(InputStream in, final FileChannel out) {
         Log.d(TAG, "Content Length: " + mContentLength + " for Download Id " + mRequest.getArticleId());
-        for (; ; ) {
-            if (mPauseId.equals(mCurrentDownloadId)) {
+        mCheckpointPolicy.reset(mCurrentBytes);
+        final DownloadControl control = mControl;
+        final BandwidthLimiter.Pacer pacer = mBandwidthLimiter.newPacer(mCurrentDownloadId, mCurrentHost);
+        int result = mTransferEngine.transfer(in, out, mCurrentBytes, TransferEngine.NO_LIMIT,
+                new TransferEngine.Callback() {
+                    @Override
+                    public boolean isStopRequested() {
+                        return control.isStopRequested();
+                    }
+
+                    @Override
+                    public void onBytesWritten(long position) {
+                        long written = position - mCurrentBytes;
+                        mCurrentBytes = position;
+                        mAttemptProgress = true;
+                        if (mContentLength != -1 && mContentLength > 0) {
+                            int progress = (int) ((mCurrentBytes * 100) / mContentLength);
+                            updateDownloadProgress(progress, mCurrentBytes);
+                        }
+                        if (mCheckpointPolicy.shouldCheckpoint(mCurrentBytes)) {
+                            checkpoint(out);
+                        }
+                        pacer.pace(written, this);
+                    }
+                });
+        checkpoint(out);
+        switch (result) {
+            case TransferEngine.RESULT_END_OF_STREAM:
+                // The whole body was read, the connection can serve the next request.
+                mConnectionReusable = true;
+                updateDownloadComplete();
+                break;
+            case TransferEngine.RESULT_STOPPED:
+                handleStopRequest();
+                break;
+            case TransferEngine.RESULT_WRITE_ERROR:
+                finish();
+                break;
+            case TransferEngine.RESULT_TIMEOUT:
+                retryLater(RetryPolicy.ERROR_TIMEOUT, DownloadError.TIMEOUT,
+                        "Read timed out after " + mCurrentBytes + " bytes");
+                break;
+            default:
+                retryLater(RetryPolicy.ERROR_NETWORK, DownloadError.NETWORK_ERROR,
+                        "Connection lost after " + mCurrentBytes + " bytes");
+                break;
+        }
+    }
+
+    /**
+     * Syncs the written data to the disk and then persists the downloaded bytes, so the
+     * database never claims more than the destination file holds.
+     */
+    private void checkpoint(FileChannel out) {
+        try {
+            out.force(true);
+        } catch (IOException e) {
+            // Keep the previous checkpoint, the data after it is truncated on resume.
+            e.printStackTrace();
+            return;
+        }
+        updateDownloadDatabaseStatus(mCurrentBytes);
+        mCheckpointPolicy.onCheckpoint(mCurrentBytes);
+        checkPreemption();
+    }
+
+    private boolean isStopRequested() {
+        return mControl.isStopRequested();
+    }
+
+    /**
+     * Preempts the current download once its scheduled preemption is due, unless the queued
+     * request it was preempted for was served by another dispatcher in the mean time.
+     * Called at the checkpoints so the download stops right after one.
+     */
+    private void checkPreemption() {
+        DownloadControl control = mControl;
+        if (now() < control.getPreemptAtMs()) {
+            return;
+        }
+        // The request may be waiting for the host of this download to be under its limit.
+        DownloadInfo next = mQueue.peekAfterFinished(mCurrentHost);
+        if (next != null && next.getPriority() > mCurrentPriority) {
+            control.request(DownloadControl.PREEMPT_REQUESTED);
+        } else {
+            Log.d(TAG, "Preemption of " + mCurrentDownloadId + " no longer needed");
+            control.cancelPreemption();
+        }
+    }
+
+    /**
+     * Stops the current download if it was paused, queued, cancelled or preempted.
+     *
+     * @return true if the download was stopped
+     */
+    private boolean handleStopRequest() {
+        switch (mControl.getState()) {
+            case DownloadControl.PAUSE_REQUESTED:
                 //Stop the download and make the item in paused state
                 Log.d(TAG, "Content PAUSED ------");
                 updateDownloadPaused();
-                return;
-            }
-            if (mQueueId.equals(mCurrentDownloadId)) {
+                return true;
+            case DownloadControl.REQUEUE_REQUESTED:
                 //Stop the download and make the item in queued state
                 Log.d(TAG, "Content QUEUED ------");
                 updateDownloadQueued();
-                return;
-            }
-            if (mCancelId.equals(mCurrentDownloadId)) {
+                return true;
+            case DownloadControl.CANCEL_REQUESTED:
                 //Stop the download after this, content will be deleted so don't update db.
                 Log.d(TAG, "Content Cancelled ------");
                 updateDownloadCancelled();
-                return;
-            }
-            int bytesRead = readFromResponse(data, in);
-
-            if (mContentLength != -1 && mContentLength > 0) {
-                int progress = (int) ((mCurrentBytes * 100) / mContentLength);
-                updateDownloadProgress(progress, mCurrentBytes);
-            }
-
-            if (bytesRead == -1) { // success, end of stream already reached
-                updateDownloadComplete();
-                return;
-            } else if (bytesRead == Integer.MIN_VALUE) {
-                return;
-            }
+                return true;
+            case DownloadControl.PREEMPT_REQUESTED:
+                //Stop the download at its last checkpoint, it goes back in the queue.
+                Log.d(TAG, "Content PREEMPTED ------");
+                updateDownloadQueued();
+                mPreempted = true;
+                return true;
+            default:
+                return false;
+        }
+    }
 
-            if (writeDataToDestination(data, bytesRead, out)) {
-                Log.d(TAG, "data written " + mCurrentBytes);
-                mCurrentBytes += bytesRead;
-                updateDownloadDatabaseStatus(mCurrentBytes);
-            } else {
-                finish();
+    /**
+     * Puts the preempted download back in the queue with the priority and the place it was
+     * taken with, it resumes from its last checkpoint with a Range request.
+     * <p>
+     * A pause or cancel can still arrive after the download stopped for the preemption, it
+     * takes precedence. The state is checked again under the queue lock, the requests made
+     * after that find the download in the queue.
+     */
+    private void requeuePreempted() {
+        synchronized (mQueue) {
+            if (mControl.getState() == DownloadControl.PREEMPT_REQUESTED) {
+                // Back in its old place, the preemption doesn't cost it its turn.
+                mQueue.requeue(mRequest, mTaken.mSequence, mTaken.mAddedAtMs);
+                mCurrentDownloadId = "";
                 return;
             }
         }
+        Log.d(TAG, "Preempted download " + mCurrentDownloadId + " stopped in the mean time");
+        handleStopRequest();
     }
 
     private void finish() {
-        if (mDownloadList.isEmpty()) {
+        if (mQueue.isEmpty()) {
             //this.quit();
         }
     }
 
-    private int readFromResponse(byte[] data, InputStream entityStream) {
-        try {
-            return entityStream.read(data);
-        } catch (IOException ex) {
-            if ("unexpected end of stream".equals(ex.getMessage())) {
-                return -1;
-            }
-            // return Integer.MIN_VALUE;
-        }
-        return Integer.MIN_VALUE;
-    }
-
-    private boolean writeDataToDestination(byte[] data, int bytesRead, OutputStream out) {
-        boolean successInWritingToDestination = true;
-        try {
-            out.write(data, 0, bytesRead);
-        } catch (IOException ex) {
-            successInWritingToDestination = false;
-        } catch (Exception e) {
-            successInWritingToDestination = false;
-        }
-        return successInWritingToDestination;
-    }
-
     private int readResponseHeaders(HttpURLConnection conn) {
         final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
         mContentLength = -1;
@@ -558,15 +1000,47 @@ public class DownloadDispatcher extends Thread {
         }
     }
 
-    private void attemptRetryOnHTTPException() {
-        //Code to retry the Download
-        if (mRedirectionCount < MAX_REDIRECTS && shouldAllowRedirects) {
-            mShouldRetry = true;
-            mRedirectionCount++;
-        } else {
-            mShouldRetry = false;
+    /**
+     * Reads the target of a redirect response, the download goes on with it until
+     * MAX_REDIRECTS is reached.
+     */
+    private void followRedirect(HttpURLConnection conn, URL url) {
+        if (mRedirectionCount >= MAX_REDIRECTS || !shouldAllowRedirects) {
             updateDownloadFailed(DownloadError.ERROR_TOO_MANY_REDIRECTS, "too many redirects");
+            return;
+        }
+        String location = conn.getHeaderField("Location");
+        if (TextUtils.isEmpty(location)) {
+            updateDownloadFailed(DownloadError.HTTP_ERROR, "Redirect without a Location header");
+            return;
+        }
+        try {
+            // The location may be relative to the url that was redirected.
+            mRedirectUrl = new URL(url, location).toString();
+        } catch (MalformedURLException e) {
+            updateDownloadFailed(DownloadError.MALFORMED_URL, "MalformedURLException: redirect location is malformed.");
+            return;
         }
+        mRedirectionCount++;
+        Log.d(TAG, "Redirect " + mRedirectionCount + " of Download Id " + mCurrentDownloadId + " to " + mRedirectUrl);
+    }
+
+    /**
+     * Forgets the cached redirect of the request if the given url came from it, a signed CDN
+     * url may have expired. The download then starts again from the original url.
+     *
+     * @return true if the original url is tried next
+     */
+    private boolean dropCachedRedirect(String downloadUrl) {
+        String originalUrl = mRequest.getUrl();
+        if (downloadUrl.equals(originalUrl)
+                || !downloadUrl.equals(RedirectCache.getInstance().get(originalUrl))) {
+            return false;
+        }
+        Log.d(TAG, "Cached redirect rejected, resolving " + originalUrl + " again");
+        RedirectCache.getInstance().remove(originalUrl);
+        mRedirectUrl = originalUrl;
+        return true;
     }
 
     /**
@@ -579,21 +1053,21 @@ public class DownloadDispatcher extends Thread {
         if (destinationFile.exists()) {
             destinationFile.delete();
         }
+        SegmentedDownloader.deleteSavedState(mRequest.getDestinationPath());
+        ResumeState.delete(mRequest.getDestinationPath());
     }
 
     private void updateDownloadComplete() {
         Log.d(TAG, "updateDownlaodComplete");
-        if (mDownloadStatusListener != null) {
-            mDownloadStatusListener.onDownloadComplete(mCurrentDownloadId);
-        }
+        mStatusDelivery.publishComplete(mCurrentDownloadId);
         updateDownloadState(IDownloadState.COMPLETE);
+        mBandwidthLimiter.remove(mCurrentDownloadId);
+        ResumeState.delete(mRequest.getDestinationPath());
     }
 
     private void updateDownloadFailed(int errorCode, String errorMsg) {
         Log.d(TAG, "updateDownlaodFailed " + errorCode + "  " + errorMsg);
-        if (mDownloadStatusListener != null) {
-            mDownloadStatusListener.onDownloadFailed(mCurrentDownloadId, errorCode, errorMsg);
-        }
+        mStatusDelivery.publishFailed(mCurrentDownloadId, errorCode, errorMsg);
         //updateDownloadState(IDownloadState.FAILED);
         updateDownloadState(IDownloadState.IN_QUEUE);//Moved into queue state to retry if reloaded
     }
@@ -603,7 +1077,7 @@ public class DownloadDispatcher extends Thread {
     }
 
     private void updateDownloadState(int state) {
-        mRequest.setDownloadState(state);
+        mRequest = mRequest.withDownloadState(state);
         update(mRequest);
     }
 
@@ -618,44 +1092,47 @@ public class DownloadDispatcher extends Thread {
     private void updateDownloadCancelled() {
         cleanupDestination();
         deleteFromDb();
+        mBandwidthLimiter.remove(mCurrentDownloadId);
     }
 
     private void updateDownloadProgress(int progress, long downloadedBytes) {
-        Log.d(TAG, " id " + mCurrentDownloadId + " progress " + progress + " bytes " + downloadedBytes);
-        if (mDownloadStatusListener != null) {
-            mDownloadStatusListener.onProgress(mCurrentDownloadId, downloadedBytes, progress);
+        if (mStatusDelivery.publishProgress(mCurrentDownloadId, downloadedBytes, progress)) {
+            Log.d(TAG, " id " + mCurrentDownloadId + " progress " + progress + " bytes " + downloadedBytes);
         }
     }
 
     private void updateDownloadDatabaseStatus(long downloadedBytes) {
-        mRequest.setDownloadedBytes(downloadedBytes);
-        mRequest.setDownloadState(IDownloadState.IN_PROGRESS);
+        mRequest = mRequest.withDownloadedBytes(downloadedBytes)
+                .withDownloadState(IDownloadState.IN_PROGRESS);
         update(mRequest);
     }
 
     private void getDbObject() {
-        if (mRealmInstance == null) {
-            mRealmInstance = Realm.getDefaultInstance();
-        }
-        DownloadRequest downloadRequest = mRealmInstance.where(DownloadRequest.class).
-                equalTo(DownloadRequest.ARTICLE_ID, mCurrentDownloadId).findFirst();
-        if (downloadRequest != null) {
-            mDbInstance = mRealmInstance.copyFromRealm(downloadRequest);
-        }
+        mDbInstance = DbManager.getInstance().getDownloadInfo(mCurrentDownloadId);
     }
 
-    private void update(final RealmObject obj) {
-        mRealmInstance.beginTransaction();
-        mRealmInstance.copyToRealmOrUpdate(obj);
-        mRealmInstance.commitTransaction();
+    private void update(DownloadInfo request) {
+        DbManager.getInstance().put(request);
     }
 
     String getCurrentDownloadId() {
         return mCurrentDownloadId;
     }
 
-    void setDownloadStatusListener(DownloadStatusListener listener) {
-        mDownloadStatusListener = listener;
+    /**
+     * Returns true if the dispatcher is waiting for a request with a slot of the
+     * {@link ConcurrencyController}, it takes the next request added to the queue. A
+     * dispatcher still waiting for a slot doesn't count.
+     */
+    boolean isIdle() {
+        return mHoldsSlot && mCurrentDownloadId.isEmpty();
+    }
+
+    /**
+     * Returns the host the current download was queued under, null while idle.
+     */
+    String getCurrentHost() {
+        return mCurrentHost;
     }
 
     private boolean createFile(File file) {
@@ -672,27 +1149,57 @@ public class DownloadDispatcher extends Thread {
         return false;
     }
 
-    void setPauseId(String pauseId) {
-        mPauseId = pauseId;
+    /**
+     * Asks the dispatcher to stop a download, ignored if it is no longer running it.
+     *
+     * @param downloadId id of the download to stop
+     * @param request    one of the {@link DownloadControl} _REQUESTED constants
+     */
+    void requestStop(String downloadId, int request) {
+        DownloadControl control = mControl;
+        if (!downloadId.isEmpty() && control.getDownloadId().equals(downloadId)) {
+            control.request(request);
+        }
+    }
+
+    /**
+     * Asks the dispatcher to suspend a download for a queued request of higher priority.
+     *
+     * @param downloadId  id of the download to suspend
+     * @param notBeforeMs earliest time of the suspension, on the {@link #now()} clock
+     */
+    void preempt(String downloadId, long notBeforeMs) {
+        DownloadControl control = mControl;
+        if (downloadId.isEmpty() || !control.getDownloadId().equals(downloadId)) {
+            return;
+        }
+        if (notBeforeMs <= now()) {
+            control.request(DownloadControl.PREEMPT_REQUESTED);
+        } else {
+            control.schedulePreemption(notBeforeMs);
+        }
+    }
+
+    /**
+     * Returns true if the current download is already going to be preempted.
+     */
+    boolean isPreempting() {
+        return !mCurrentDownloadId.isEmpty() && mControl.isPreemptionScheduled();
+    }
+
+    int getCurrentPriority() {
+        return mCurrentPriority;
     }
 
-    void setQueueId(String downloadId) {
-        mQueueId = downloadId;
+    long getStartedAtMs() {
+        return mStartedAtMs;
     }
 
-    void setCancelId(String cancelId) {
-        mCancelId = cancelId;
+    static long now() {
+        return System.nanoTime() / 1000000;
     }
 
     private void deleteFromDb() {
-        Realm realm = Realm.getDefaultInstance();
-        DownloadRequest downloadRequest = realm.where(DownloadRequest.class).
-                equalTo(DownloadRequest.ARTICLE_ID, mCurrentDownloadId).findFirst();
-        if (downloadRequest != null) {
-            realm.beginTransaction();
-            downloadRequest.deleteFromRealm();
-            realm.commitTransaction();
-        }
-        realm.close();
+        DbManager.getInstance().delete(mCurrentDownloadId);
     }
 }
@@ -2,12 +2,25 @@ package com.media.downloadmanager;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Looper;
 import android.util.Log;
 
 import com.media.downloadmanager.database.DbManager;
+import com.media.downloadmanager.database.DownloadRequestMapper;
 import com.media.downloadmanager.interfaces.DownloadStatusListener;
 import com.media.downloadmanager.interfaces.IDownloadManager;
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
 import com.media.downloadmanager.model.DownloadRequest;
+import com.media.downloadmanager.model.HostStats;
+import com.media.downloadmanager.utils.BufferPool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class DownloadManager implements IDownloadManager {
 
@@ -17,14 +30,25 @@ public class DownloadManager implements IDownloadManager {
     private final String TAG = "DownloadManager";
 
     public static DownloadManager getInstance(Context context) {
+        return getInstance(context, DownloadConfiguration.getDefault());
+    }
+
+    /**
+     * Returns the download manager, creating it with the given configuration on the first call.
+     * The configuration is ignored once the instance exists.
+     */
+    public static DownloadManager getInstance(Context context, DownloadConfiguration configuration) {
         if (sInstance == null) {
-            sInstance = new DownloadManager(context);
+            sInstance = new DownloadManager(context, configuration);
         }
         return sInstance;
     }
 
-    private DownloadManager(Context ctx) {
-        mRequestQueue = new DownloadRequestQueue();
+    private DownloadManager(Context ctx, DownloadConfiguration configuration) {
+        if (configuration.getDownloadStore() != null) {
+            DbManager.init(configuration.getDownloadStore());
+        }
+        mRequestQueue = new DownloadRequestQueue(configuration);
         mContext = ctx;
     }
 
@@ -36,10 +60,48 @@ public class DownloadManager implements IDownloadManager {
         return 0;
     }
 
+    /**
+     * Adds many requests at once. Requests already queued or running and repeated ids are
+     * skipped, the others are saved in a single transaction and queued in one pass.
+     *
+     * @return number of requests added
+     */
+    @Override
+    public int addAll(Collection<DownloadRequest> requests) {
+        List<DownloadInfo> newRequests =
+                mRequestQueue.filterNew(DownloadRequestMapper.toInfos(requests));
+        if (newRequests.isEmpty()) {
+            return 0;
+        }
+        Log.d(TAG, "addAll " + newRequests.size() + " of " + requests.size());
+        // Only the requests actually added set their cap, the first one of every id like
+        // filterNew keeps.
+        Set<String> newIds = new HashSet<>(newRequests.size());
+        for (DownloadInfo request : newRequests) {
+            newIds.add(request.getArticleId());
+        }
+        for (DownloadRequest request : requests) {
+            if (newIds.remove(request.getArticleId())) {
+                setRequestBandwidth(request);
+            }
+        }
+        List<DownloadInfo> queued = new ArrayList<>(newRequests.size());
+        for (DownloadInfo request : newRequests) {
+            queued.add(request.withDownloadState(IDownloadState.IN_QUEUE));
+        }
+        DbManager.getInstance().putAll(queued);
+        mRequestQueue.addAll(queued);
+        startDownloadService();
+        startDownloading();
+        return newRequests.size();
+    }
+
     private void addTodb(final DownloadRequest request) {
         Log.d(TAG, "addtodb " + request.getArticleId());
-        DbManager.getInstance().insert(request, null);
-        mRequestQueue.add(request);
+        setRequestBandwidth(request);
+        DownloadInfo info = DownloadRequestMapper.toInfo(request);
+        DbManager.getInstance().put(info);
+        mRequestQueue.add(info);
     }
 
     public void startDownloadService() {
@@ -56,7 +118,7 @@ public class DownloadManager implements IDownloadManager {
 
     @Override
     public int resume(String id) {
-        DownloadRequest req = DbManager.getInstance().getDownloadRequest(id);
+        DownloadInfo req = DbManager.getInstance().getDownloadInfo(id);
         mRequestQueue.resume(req);
         startDownloadService();
         startDownloading();
@@ -68,11 +130,56 @@ public class DownloadManager implements IDownloadManager {
         return mRequestQueue.cancel(id);
     }
 
+    /**
+     * Limits the rate of all the downloads together, the running ones follow at once.
+     *
+     * @param bytesPerSecond rate limit, 0 for none
+     */
+    @Override
+    public void setMaxBandwidth(long bytesPerSecond) {
+        mRequestQueue.getBandwidthLimiter().setMaxBandwidth(bytesPerSecond);
+    }
+
+    /**
+     * Limits the rate of a single download, on top of the global limit. The cap is kept
+     * until the download completes or is cancelled. It only lives in memory, a download
+     * resumed after the process restarted runs uncapped until it is set again.
+     *
+     * @param bytesPerSecond rate limit, 0 for none
+     */
+    @Override
+    public void setMaxBandwidth(String id, long bytesPerSecond) {
+        mRequestQueue.getBandwidthLimiter().setMaxBandwidth(id, bytesPerSecond);
+    }
+
+    /**
+     * Returns the downloads and the throughput of every host downloaded from since the start.
+     */
+    @Override
+    public List<HostStats> getHostStats() {
+        return mRequestQueue.getHostStats();
+    }
+
+    private void setRequestBandwidth(DownloadRequest request) {
+        if (request.getMaxBandwidth() > 0) {
+            setMaxBandwidth(request.getArticleId(), request.getMaxBandwidth());
+        }
+    }
+
     @Override
     public void release() {
         mRequestQueue.stop();
     }
 
+    /**
+     * Waits for the downloads stopped by {@link #release()} to save their state.
+     *
+     * @return false if some were still running after the timeout
+     */
+    boolean awaitRelease(long timeoutMs) {
+        return mRequestQueue.awaitStop(timeoutMs);
+    }
+
     boolean isDownloadableItemsPresent() {
         return DbManager.getInstance().ifPendingItemPresent();
     }
@@ -86,8 +193,27 @@ public class DownloadManager implements IDownloadManager {
         mRequestQueue.pauseAll();
     }
 
+    /**
+     * Set the listener for download events, called on the download threads.
+     */
     public void setDownloadStatusListener(DownloadStatusListener listener) {
-        mRequestQueue.setDownloadStatusListener(listener);
+        mRequestQueue.setDownloadStatusListener(listener, DownloadStatusDelivery.DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Set the listener for download events, called on the given executor. Progress updates
+     * are coalesced so the listener only sees the latest progress of every download.
+     */
+    public void setDownloadStatusListener(DownloadStatusListener listener, Executor executor) {
+        mRequestQueue.setDownloadStatusListener(listener, executor);
+    }
+
+    /**
+     * Set the listener for download events, called on the thread of the given looper.
+     * Pass {@link Looper#getMainLooper()} to update the ui straight from the listener.
+     */
+    public void setDownloadStatusListener(DownloadStatusListener listener, Looper looper) {
+        mRequestQueue.setDownloadStatusListener(listener, DownloadStatusDelivery.executorFor(looper));
     }
 
     public boolean isQueueEmpty() {
@@ -102,6 +228,14 @@ public class DownloadManager implements IDownloadManager {
         mRequestQueue.reload();
     }
 
+    /**
+     * Called when the connectivity changes, the number of downloads running at once is
+     * measured again for the new network.
+     */
+    public void onNetworkChanged() {
+        mRequestQueue.onNetworkChanged();
+    }
+
     public static void setIsConnectedtoWifi(boolean connectedToWifi) {
         DownloadRequestQueue.setIsConnectedToWifi(connectedToWifi);
     }
@@ -110,6 +244,20 @@ public class DownloadManager implements IDownloadManager {
         return mRequestQueue.getCurrentDownloadId();
     }
 
+    /**
+     * Returns the ids of all the downloads that are running in parallel.
+     */
+    public List<String> getCurrentDownloadRequestIds() {
+        return mRequestQueue.getCurrentDownloadIds();
+    }
+
+    /**
+     * Returns the transfer buffer pool shared by all the downloads, mainly for its metrics.
+     */
+    public BufferPool getBufferPool() {
+        return mRequestQueue.getBufferPool();
+    }
+
     public void stopDownloadService() {
         mContext.stopService(new Intent(mContext, DownloadService.class));
     }
@@ -7,55 +7,96 @@ import android.util.Log;
 import com.media.downloadmanager.database.DbManager;
 import com.media.downloadmanager.interfaces.DownloadStatusListener;
 import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
 import com.media.downloadmanager.model.DownloadRequest;
+import com.media.downloadmanager.model.HostStats;
+import com.media.downloadmanager.utils.BufferPool;
+import com.media.downloadmanager.utils.ConnectionManager;
 import com.media.downloadmanager.utils.DownloadUtils;
+import com.media.downloadmanager.utils.RedirectCache;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 public class DownloadRequestQueue {
 
     private static final String TAG = "DownloadRequestQueue";
     /**
-     * The queue of requests that are actually going out to the network.
+     * The queue of requests that are actually going out to the network. Compound operations
+     * synchronize on it, the dispatchers take a request and publish it as their current
+     * download under the same lock.
      */
-    private PriorityBlockingQueue<DownloadRequest> mDownloadQueue = new PriorityBlockingQueue<>();
+    private IndexedDownloadQueue mDownloadQueue;
 
     /**
-     * The download dispatcher
+     * The download dispatchers pool, all of them drain {@link #mDownloadQueue}
      */
-    private DownloadDispatcher mDownloadDispatcher;
+    private DownloadDispatcher[] mDownloadDispatchers;
+
+    private static boolean sIsConnectedToWifi = false;
 
     /**
-     * ArrayList to store queue objects
+     * Delivers the events of all the dispatchers to the listener
      */
-    private ArrayList<DownloadRequest> mDownloadQueueList = new ArrayList<>();
-    private static boolean sIsConnectedToWifi = false;
+    private DownloadStatusDelivery mStatusDelivery;
 
-    void setDownloadStatusListener(DownloadStatusListener listener) {
-        if (mDownloadDispatcher != null) {
-            mDownloadDispatcher.setDownloadStatusListener(listener);
-        }
+    /**
+     * Transfer buffers shared by all the dispatchers
+     */
+    private BufferPool mBufferPool;
+
+    /**
+     * Rate limits of the transfers, shared by all the dispatchers
+     */
+    private BandwidthLimiter mBandwidthLimiter;
+
+    /**
+     * Number of downloads running at once, shared by all the dispatchers
+     */
+    private ConcurrencyController mConcurrency;
+
+    private DownloadConfiguration mConfiguration;
+
+    void setDownloadStatusListener(DownloadStatusListener listener, Executor executor) {
+        mStatusDelivery.setListener(listener, executor);
     }
 
     /**
      * Default constructor.
      */
     DownloadRequestQueue() {
-        initialize();
+        this(DownloadConfiguration.getDefault());
+    }
+
+    /**
+     * @param configuration configuration used to size the dispatchers pool
+     */
+    DownloadRequestQueue(DownloadConfiguration configuration) {
+        initialize(configuration);
         setIsConnectedToWifi(DownloadUtils.isConnectedToWifi());
     }
 
     void start() {
         //stop();
-        try {
-            if (!mDownloadDispatcher.isAlive()) {
-                mDownloadDispatcher.start();
+        mConcurrency.startSampling();
+        for (int i = 0; i < mDownloadDispatchers.length; i++) {
+            // A stopped dispatcher has released its resources and can't be started again.
+            if (mDownloadDispatchers[i].isQuitting()) {
+                mDownloadDispatchers[i] = createDispatcher(i);
+            }
+            DownloadDispatcher dispatcher = mDownloadDispatchers[i];
+            try {
+                if (!dispatcher.isAlive()) {
+                    dispatcher.start();
+                }
+            } catch (IllegalThreadStateException ex) {
+                Log.d(TAG, "Thread Already Started");
             }
-        } catch (IllegalThreadStateException ex) {
-            Log.d(TAG, "Thread Already Started");
         }
     }
 
@@ -64,31 +105,51 @@ public class DownloadRequestQueue {
      *
      * @param request Download request to be added
      */
-    public void add(DownloadRequest request) {
-        boolean alreadyInQueue = false;
-        for (DownloadRequest req : mDownloadQueueList) {
-            if (request.getArticleId().equals(req.getArticleId())) {
-                alreadyInQueue = true;
-                break;
+    public void add(DownloadInfo request) {
+        // The state is written under the lock, a dispatcher taking the request marks it in
+        // progress after that.
+        synchronized (mDownloadQueue) {
+            if (!mDownloadQueue.contains(request.getArticleId())
+                    && !isDownloading(request.getArticleId())) {
+                Log.d(TAG, "adding new request 1 " + request.getArticleId());
+                enqueue(updateDownloadStateToDb(IDownloadState.IN_QUEUE, request));
+                preemptFor(request.getPriority(), IndexedDownloadQueue.hostOf(request.getUrl()));
             }
         }
-        if (mDownloadDispatcher.getCurrentDownloadId().equals(request.getArticleId())) {
-            alreadyInQueue = true;
+    }
+
+    /**
+     * Returns the requests that are neither queued nor running, keeping the first request of
+     * every id.
+     */
+    List<DownloadInfo> filterNew(Collection<DownloadInfo> requests) {
+        Map<String, DownloadInfo> newRequests = new LinkedHashMap<>();
+        synchronized (mDownloadQueue) {
+            for (DownloadInfo request : requests) {
+                String articleId = request.getArticleId();
+                if (!newRequests.containsKey(articleId)
+                        && !mDownloadQueue.contains(articleId)
+                        && !isDownloading(articleId)) {
+                    newRequests.put(articleId, request);
+                }
+            }
         }
-        if (!alreadyInQueue) {
-            Log.d(TAG, "adding new request 1 " + request.getArticleId());
-            if (request.isDownloadOnWiFi()) {
-                if (sIsConnectedToWifi) {
-                    request.setPriority(DownloadRequest.Priority.NORMAL);
-                    mDownloadQueue.add(request);
-                    mDownloadQueueList.add(request);
+        return new ArrayList<>(newRequests.values());
+    }
+
+    /**
+     * Adds requests already saved as queued to the queue in one pass. Requests that got
+     * queued or started in the mean time are skipped.
+     */
+    void addAll(List<DownloadInfo> requests) {
+        synchronized (mDownloadQueue) {
+            for (DownloadInfo request : requests) {
+                if (!mDownloadQueue.contains(request.getArticleId())
+                        && !isDownloading(request.getArticleId())) {
+                    enqueue(request);
+                    preemptFor(request.getPriority(), IndexedDownloadQueue.hostOf(request.getUrl()));
                 }
-            } else {
-                request.setPriority(DownloadRequest.Priority.NORMAL);
-                mDownloadQueue.add(request);
-                mDownloadQueueList.add(request);
             }
-            updateDownloadStateToDb(IDownloadState.IN_QUEUE, request);
         }
     }
 
@@ -97,68 +158,125 @@ public class DownloadRequestQueue {
      *
      * @param request Download request to be added
      */
-    void resume(DownloadRequest request) {
-        boolean alreadyInQueue = false;
-        for (DownloadRequest req : mDownloadQueueList) {
-            if (request.getArticleId().equals(req.getArticleId())) {
-                alreadyInQueue = true;
-                resumeImmediately(req);
-                break;
-            }
-        }
-        if (mDownloadDispatcher.getCurrentDownloadId().equals(request.getArticleId())) {
-            alreadyInQueue = true;
-        }
-        if (!alreadyInQueue) {
-            Log.d(TAG, "adding new request 2 " + request.getArticleId());
-            Log.d(TAG, "downloadQueue " + mDownloadQueue.size());
-            if (request.isDownloadOnWiFi()) {
-                if (sIsConnectedToWifi) {
-                    request.setPriority(DownloadRequest.Priority.NORMAL);
-                    mDownloadQueue.add(request);
-                    mDownloadQueueList.add(request);
-                }
-            } else {
-                request.setPriority(DownloadRequest.Priority.NORMAL);
-                mDownloadQueue.add(request);
-                mDownloadQueueList.add(request);
+    void resume(DownloadInfo request) {
+        synchronized (mDownloadQueue) {
+            DownloadInfo queued = mDownloadQueue.get(request.getArticleId());
+            if (queued != null) {
+                resumeImmediately(queued);
+            } else if (!isDownloading(request.getArticleId())) {
+                Log.d(TAG, "adding new request 2 " + request.getArticleId());
+                Log.d(TAG, "downloadQueue " + mDownloadQueue.size());
+                enqueue(updateDownloadStateToDb(IDownloadState.IN_QUEUE, request));
+                preemptFor(request.getPriority(), IndexedDownloadQueue.hostOf(request.getUrl()));
             }
-            updateDownloadStateToDb(IDownloadState.IN_QUEUE, request);
         }
     }
 
-    private void updateDownloadStateToDb(int inQueue, DownloadRequest request) {
-        request.setDownloadState(inQueue);
-        DbManager.getInstance().update(request);
+    /**
+     * Places the request in the queue with its own priority, honouring the wifi only flag.
+     * The boost of a request resumed earlier is dropped.
+     * Should be called holding the lock of {@link #mDownloadQueue}.
+     */
+    private void enqueue(DownloadInfo request) {
+        if (request.isDownloadOnWiFi() && !sIsConnectedToWifi) {
+            return;
+        }
+        if (request.getPriority() == DownloadRequest.Priority.IMMEDIATE.getValue()) {
+            request = request.withPriority(DownloadRequest.Priority.NORMAL);
+        }
+        mDownloadQueue.add(request);
+    }
+
+    /**
+     * Returns the dispatcher currently downloading the given id, null if none of them is.
+     */
+    private DownloadDispatcher getDispatcherFor(String articleId) {
+        for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+            if (dispatcher.getCurrentDownloadId().equals(articleId)) {
+                return dispatcher;
+            }
+        }
+        return null;
     }
 
-    private void resumeImmediately(DownloadRequest req) {
+    boolean isDownloading(String articleId) {
+        return getDispatcherFor(articleId) != null;
+    }
+
+    /**
+     * Saves the request with the given state.
+     *
+     * @return the request in its new state
+     */
+    private DownloadInfo updateDownloadStateToDb(int inQueue, DownloadInfo request) {
+        DownloadInfo updated = request.withDownloadState(inQueue);
+        DbManager.getInstance().put(updated);
+        return updated;
+    }
+
+    private void resumeImmediately(DownloadInfo req) {
         addItToFront(req);
-        pauseCurrentDownload();
+        preemptFor(DownloadRequest.Priority.IMMEDIATE.getValue(),
+                IndexedDownloadQueue.hostOf(req.getUrl()));
     }
 
-    private void pauseCurrentDownload() {
-        mDownloadDispatcher.setPauseId(getCurrentDownloadId());
+    /**
+     * Frees a dispatcher for a queued request of the given priority. Nothing is preempted as
+     * long as one of the dispatchers is idle with a slot of the concurrency limit, the ones
+     * waiting for a slot can't take the request. Otherwise the download of lowest priority below
+     * it is suspended at its next checkpoint, once it ran for the minimum run time, and goes
+     * back in the queue with its own priority and progress.
+     * <p>
+     * While the host of the request is at its limit an idle dispatcher can't take it either,
+     * only a download of the same host is preempted then.
+     * Should be called holding the lock of {@link #mDownloadQueue}.
+     *
+     * @param host host of the request, as returned by {@link IndexedDownloadQueue#hostOf(String)}
+     */
+    private void preemptFor(int priority, String host) {
+        boolean hostFree = mDownloadQueue.hasFreeSlot(host);
+        DownloadDispatcher candidate = null;
+        for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+            if (hostFree && dispatcher.isIdle()) {
+                return;
+            }
+            if (dispatcher.getCurrentDownloadId().isEmpty()
+                    || dispatcher.isPreempting() || dispatcher.getCurrentPriority() >= priority
+                    || (!hostFree && !host.equals(dispatcher.getCurrentHost()))) {
+                continue;
+            }
+            if (candidate == null
+                    || dispatcher.getCurrentPriority() < candidate.getCurrentPriority()
+                    || (dispatcher.getCurrentPriority() == candidate.getCurrentPriority()
+                    && dispatcher.getStartedAtMs() < candidate.getStartedAtMs())) {
+                candidate = dispatcher;
+            }
+        }
+        if (candidate != null) {
+            long notBeforeMs = candidate.getStartedAtMs() + mConfiguration.getMinPreemptRunTimeMs();
+            Log.d(TAG, "Preempting " + candidate.getCurrentDownloadId() + " for priority " + priority);
+            candidate.preempt(candidate.getCurrentDownloadId(), notBeforeMs);
+        }
     }
 
     /**
-     * Since the priority is set while we add the object to the queue.
-     * First we need the remove the request from the queue , set the priority
-     * and add it again.
+     * Moves the queued request ahead of the others by raising its priority.
      */
-    private void addItToFront(DownloadRequest req) {
-        mDownloadQueue.remove(req);
-        req.setPriority(DownloadRequest.Priority.IMMEDIATE);
-        mDownloadQueue.add(req);
+    private void addItToFront(DownloadInfo req) {
+        mDownloadQueue.updatePriority(req.getArticleId(), DownloadRequest.Priority.IMMEDIATE);
     }
 
     /**
      * Cancel the dispatchers in work and also stops the dispatchers.
      */
     void pauseAll() {
-        mDownloadQueue.clear();
-        mDownloadQueueList.clear();
-        mDownloadDispatcher.setPauseId(mDownloadDispatcher.getCurrentDownloadId());
+        // Locked so a preempted download can't be queued again in between.
+        synchronized (mDownloadQueue) {
+            mDownloadQueue.clear();
+            for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+                dispatcher.requestStop(dispatcher.getCurrentDownloadId(), DownloadControl.PAUSE_REQUESTED);
+            }
+        }
     }
 
     /**
@@ -169,27 +287,29 @@ public class DownloadRequestQueue {
      */
     int cancel(String cancelId) {
         String destinationPath = "";
-        if (getCurrentDownloadId().equals(cancelId)) {
-            mDownloadDispatcher.setCancelId(cancelId);
-            return 0;
-        } else {
-            for (DownloadRequest req : mDownloadQueueList) {
-                if (req.getArticleId().equals(cancelId)) {
-                    destinationPath = req.getDestinationPath();
-                    mDownloadQueue.remove(req);
-                    mDownloadQueueList.remove(req);
-                    break;
-                }
-            }
-
-            if (destinationPath.isEmpty()) {
-                destinationPath = DbManager.getInstance().getDownloadRequest(cancelId).getDestinationPath();
+        DownloadInfo req;
+        // Locked so the request can't move from the queue to a dispatcher in between.
+        synchronized (mDownloadQueue) {
+            DownloadDispatcher dispatcher = getDispatcherFor(cancelId);
+            if (dispatcher != null) {
+                dispatcher.requestStop(cancelId, DownloadControl.CANCEL_REQUESTED);
+                return 0;
             }
+            req = mDownloadQueue.remove(cancelId);
+        }
+        if (req != null) {
+            destinationPath = req.getDestinationPath();
+        }
 
-            cleanupDestination(destinationPath);
-            deleteFromDb(cancelId);
-            return 0;
+        if (destinationPath.isEmpty()) {
+            DownloadInfo saved = DbManager.getInstance().getDownloadInfo(cancelId);
+            destinationPath = saved == null ? "" : saved.getDestinationPath();
         }
+
+        cleanupDestination(destinationPath);
+        deleteFromDb(cancelId);
+        mBandwidthLimiter.remove(cancelId);
+        return 0;
     }
 
     private void deleteFromDb(String cancelId) {
@@ -202,28 +322,130 @@ public class DownloadRequestQueue {
         if (destinationFile.exists()) {
             destinationFile.delete();
         }
+        SegmentedDownloader.deleteSavedState(destinationPath);
+        ResumeState.delete(destinationPath);
     }
 
     /**
      * Perform construction
      */
-    private void initialize() {
-        mDownloadDispatcher = new DownloadDispatcher(mDownloadQueue, mDownloadQueueList);
+    private void initialize(DownloadConfiguration configuration) {
+        mConfiguration = configuration;
+        mDownloadQueue = new IndexedDownloadQueue(configuration.getPriorityAgingIntervalMs(),
+                configuration.getMaxDownloadsPerHost());
+        mStatusDelivery = new DownloadStatusDelivery(configuration.getProgressIntervalMs());
+        mBufferPool = new BufferPool(configuration.getBufferPoolSize());
+        mBandwidthLimiter = new BandwidthLimiter(configuration.getMaxBandwidth());
+        mConcurrency = new ConcurrencyController(this, mBandwidthLimiter, configuration);
+        ConnectionManager.getInstance().configure(configuration.getMaxConnectionsPerHost(),
+                configuration.getKeepAliveDurationMs());
+        RedirectCache.getInstance().configure(configuration.getRedirectCacheTtlMs());
+        int threadPoolSize = configuration.getThreadPoolSize();
+        mDownloadDispatchers = new DownloadDispatcher[threadPoolSize];
+        for (int i = 0; i < threadPoolSize; i++) {
+            mDownloadDispatchers[i] = createDispatcher(i);
+        }
+    }
+
+    private DownloadDispatcher createDispatcher(int index) {
+        DownloadDispatcher dispatcher = new DownloadDispatcher(mDownloadQueue, mConfiguration,
+                mStatusDelivery, mBufferPool, mBandwidthLimiter, mConcurrency);
+        dispatcher.setName(DownloadDispatcher.TAG + "-" + index);
+        return dispatcher;
     }
 
     /**
-     * Stops download dispatchers.
+     * Stops the download dispatchers and the concurrency sampling.
      */
     void stop() {
-        mDownloadDispatcher.quit();
+        for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+            dispatcher.quit();
+        }
+        mConcurrency.stopSampling();
+    }
+
+    /**
+     * Waits for the dispatchers asked to quit to exit, they have saved the state of their
+     * download once they did, and for the concurrency sampling to stop.
+     *
+     * @param timeoutMs maximum time to wait for all of them
+     * @return true if every thread exited in time
+     */
+    boolean awaitStop(long timeoutMs) {
+        long deadline = System.nanoTime() / 1000000 + timeoutMs;
+        for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+            long remainingMs = deadline - System.nanoTime() / 1000000;
+            try {
+                if (remainingMs > 0) {
+                    dispatcher.join(remainingMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (dispatcher.isAlive()) {
+                Log.d(TAG, dispatcher.getName() + " still running after " + timeoutMs + " ms");
+                return false;
+            }
+        }
+        try {
+            if (!mConcurrency.awaitSamplingStopped(deadline - System.nanoTime() / 1000000)) {
+                Log.d(TAG, "Concurrency sampling still running after " + timeoutMs + " ms");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
     }
 
+    /**
+     * Pause a download. A running download is stopped by its dispatcher, a queued one is
+     * taken out of the queue and marked as paused.
+     *
+     * @param id id of the download to be paused
+     */
     void pause(String id) {
-        mDownloadDispatcher.setPauseId(id);
+        DownloadInfo req;
+        synchronized (mDownloadQueue) {
+            DownloadDispatcher dispatcher = getDispatcherFor(id);
+            if (dispatcher != null) {
+                dispatcher.requestStop(id, DownloadControl.PAUSE_REQUESTED);
+                return;
+            }
+            req = mDownloadQueue.remove(id);
+        }
+        if (req != null) {
+            updateDownloadStateToDb(IDownloadState.PAUSED, req);
+        }
     }
 
+    /**
+     * Returns the id of the first running download, empty if all the dispatchers are idle.
+     */
     String getCurrentDownloadId() {
-        return mDownloadDispatcher.getCurrentDownloadId();
+        for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+            String id = dispatcher.getCurrentDownloadId();
+            if (!id.isEmpty()) {
+                return id;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns the ids of all the downloads running at the moment.
+     */
+    List<String> getCurrentDownloadIds() {
+        List<String> ids = new ArrayList<>();
+        for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+            String id = dispatcher.getCurrentDownloadId();
+            if (!id.isEmpty()) {
+                ids.add(id);
+            }
+        }
+        return ids;
     }
 
     boolean isEmpty() {
@@ -232,18 +454,38 @@ public class DownloadRequestQueue {
 
     void placeEverythingInQueue() {
         mDownloadQueue.clear();
-        mDownloadQueueList.clear();
-        mDownloadDispatcher.setQueueId(mDownloadDispatcher.getCurrentDownloadId());
+        for (DownloadDispatcher dispatcher : mDownloadDispatchers) {
+            dispatcher.requestStop(dispatcher.getCurrentDownloadId(), DownloadControl.REQUEUE_REQUESTED);
+        }
     }
 
     void reload() {
-        List<DownloadRequest> requestList = DbManager.getInstance().getPendingItems();
+        List<DownloadInfo> requestList = DbManager.getInstance().getPendingItems();
         Log.d(TAG, "reload " + requestList.size());
-        for (DownloadRequest req : requestList) {
+        for (DownloadInfo req : requestList) {
             resume(req);
         }
     }
 
+    BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    BandwidthLimiter getBandwidthLimiter() {
+        return mBandwidthLimiter;
+    }
+
+    List<HostStats> getHostStats() {
+        return mDownloadQueue.getHostStats(mBandwidthLimiter);
+    }
+
+    /**
+     * Starts the throughput estimate over, the network the downloads run on changed.
+     */
+    void onNetworkChanged() {
+        mConcurrency.reset();
+    }
+
     static void setIsConnectedToWifi(boolean sIsConnectedToWifi) {
         DownloadRequestQueue.sIsConnectedToWifi = sIsConnectedToWifi;
     }
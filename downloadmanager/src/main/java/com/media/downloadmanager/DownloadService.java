@@ -6,11 +6,18 @@ import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.media.downloadmanager.database.DbManager;
+
 public class DownloadService extends Service {
 
     protected static final String TAG = "DownloadService";
     private static boolean isRunning;
 
+    /**
+     * Time the dispatchers get to stop when the service is destroyed
+     */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -55,8 +62,17 @@ public class DownloadService extends Service {
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
         isRunning = false;
-        DownloadManager.getInstance(this).placeEverythingInQueue();
-        DownloadManager.getInstance(this).release();
+        DownloadManager downloadManager = DownloadManager.getInstance(this);
+        downloadManager.placeEverythingInQueue();
+        downloadManager.release();
+        // The dispatchers save the state of their download as they stop, then the writes
+        // made in the background are committed in case the process goes away next.
+        if (!downloadManager.awaitRelease(STOP_TIMEOUT_MS)) {
+            Log.d(TAG, "Dispatchers still running, flushing what was saved");
+        }
+        if (!DbManager.getInstance().flush()) {
+            Log.e(TAG, "Download states not saved");
+        }
         super.onDestroy();
     }
 
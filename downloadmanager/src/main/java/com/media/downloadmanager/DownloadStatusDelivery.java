@@ -0,0 +1,164 @@
+package com.media.downloadmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.media.downloadmanager.interfaces.DownloadStatusListener;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers the events of all the dispatchers to the {@link DownloadStatusListener}.
+ * <p>
+ * Progress is coalesced per download id: an update is only accepted when the whole percent
+ * changed or the configured interval went by since the last accepted one, and while an
+ * update waits for the executor it is replaced by newer ones, so the listener always gets the
+ * latest snapshot rather than a backlog. Completion and failure are delivered after any
+ * pending progress of the same download.
+ * <p>
+ * Events are delivered on the executor given with the listener. Ordering per download holds
+ * as long as that executor is serial, like the one built from a {@link Looper}.
+ */
+class DownloadStatusDelivery {
+
+    /**
+     * Runs the events on the thread that published them.
+     */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final long mIntervalMs;
+    private volatile DownloadStatusListener mListener;
+    private volatile Executor mExecutor = DIRECT_EXECUTOR;
+
+    /**
+     * What was last accepted for every running download
+     */
+    private final Map<String, Snapshot> mLastAccepted = new ConcurrentHashMap<>();
+
+    /**
+     * Latest accepted progress not yet delivered, per download
+     */
+    private final Map<String, Snapshot> mPending = new ConcurrentHashMap<>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            Iterator<String> iterator = mPending.keySet().iterator();
+            while (iterator.hasNext()) {
+                deliverPending(iterator.next());
+            }
+        }
+    };
+
+    DownloadStatusDelivery(long intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    void setListener(DownloadStatusListener listener, Executor executor) {
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /**
+     * Publishes the progress of a download, coalescing it with the previous updates.
+     *
+     * @return true if the update was accepted for delivery
+     */
+    boolean publishProgress(String id, long downloadedBytes, int progress) {
+        if (mListener == null) {
+            return false;
+        }
+        long now = System.nanoTime() / 1000000;
+        Snapshot last = mLastAccepted.get(id);
+        if (last != null && last.mProgress == progress && now - last.mTimeMs < mIntervalMs) {
+            return false;
+        }
+        Snapshot snapshot = new Snapshot(downloadedBytes, progress, now);
+        mLastAccepted.put(id, snapshot);
+        mPending.put(id, snapshot);
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDrain);
+        }
+        return true;
+    }
+
+    void publishComplete(final String id) {
+        mLastAccepted.remove(id);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverPending(id);
+                DownloadStatusListener listener = mListener;
+                if (listener != null) {
+                    listener.onDownloadComplete(id);
+                }
+            }
+        });
+    }
+
+    void publishFailed(final String id, final int errorCode, final String errorMessage) {
+        mLastAccepted.remove(id);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverPending(id);
+                DownloadStatusListener listener = mListener;
+                if (listener != null) {
+                    listener.onDownloadFailed(id, errorCode, errorMessage);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the coalescing state of a download that stopped running. An update still
+     * pending is delivered anyway.
+     */
+    void release(String id) {
+        mLastAccepted.remove(id);
+    }
+
+    private void deliverPending(String id) {
+        Snapshot snapshot = mPending.remove(id);
+        DownloadStatusListener listener = mListener;
+        if (snapshot != null && listener != null) {
+            listener.onProgress(id, snapshot.mDownloadedBytes, snapshot.mProgress);
+        }
+    }
+
+    /**
+     * Returns an executor posting to the given looper.
+     */
+    static Executor executorFor(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    private static class Snapshot {
+        final long mDownloadedBytes;
+        final int mProgress;
+        final long mTimeMs;
+
+        Snapshot(long downloadedBytes, int progress, long timeMs) {
+            mDownloadedBytes = downloadedBytes;
+            mProgress = progress;
+            mTimeMs = timeMs;
+        }
+    }
+}
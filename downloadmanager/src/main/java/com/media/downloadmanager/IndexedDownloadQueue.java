@@ -0,0 +1,419 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.model.DownloadInfo;
+import com.media.downloadmanager.model.DownloadRequest;
+import com.media.downloadmanager.model.HostStats;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Blocking priority queue of the download requests waiting for a dispatcher, indexed by
+ * article id.
+ * <p>
+ * Membership checks and lookups by id are constant time, adding, removing and changing the
+ * priority of a request are logarithmic. Requests of the same priority are taken in the
+ * order they were added.
+ * <p>
+ * With aging enabled a request gets ahead of the requests one priority level above it that
+ * were added more than one aging interval after it, so a steady stream of normal requests
+ * can't starve the low ones. Every level is a head start of one interval, which keeps the
+ * ordering fixed while the requests wait. {@link DownloadRequest.Priority#IMMEDIATE} requests
+ * always go first.
+ * <p>
+ * The requests are also grouped by the host of their url. A host can be limited to a number
+ * of downloads running at once, its requests wait while it is at the limit and the requests
+ * of the other hosts are taken instead. Among the hosts whose next request has the highest
+ * priority, the one served the longest time ago goes first, so the requests of a host
+ * can't hold every dispatcher while another host has some of the same priority waiting.
+ * The dispatchers report the end of a download with {@link #finished(String)}.
+ * <p>
+ * Every method locks the queue itself, callers can synchronize on it to run several
+ * operations atomically. {@link #take()} releases that lock while it waits.
+ */
+class IndexedDownloadQueue {
+
+    static final int NO_HOST_LIMIT = 0;
+
+    private final Map<String, Node> mIndex = new HashMap<>();
+    private final TreeSet<Node> mOrdered = new TreeSet<>();
+    private long mSequence = 0;
+    private final long mAgingIntervalMs;
+
+    /**
+     * Every host seen so far, kept for the stats once its requests are done
+     */
+    private final Map<String, Host> mHosts = new HashMap<>();
+    private final int mMaxDownloadsPerHost;
+    private long mServedCount = 0;
+
+    /**
+     * @param agingIntervalMs     waiting time worth one priority level, 0 disables aging
+     * @param maxDownloadsPerHost downloads of the same host running at once,
+     *                            {@link #NO_HOST_LIMIT} for no limit
+     */
+    IndexedDownloadQueue(long agingIntervalMs, int maxDownloadsPerHost) {
+        mAgingIntervalMs = agingIntervalMs;
+        mMaxDownloadsPerHost = maxDownloadsPerHost;
+    }
+
+    /**
+     * Adds a request unless one with the same id is already queued.
+     *
+     * @return true if the request was added
+     */
+    synchronized boolean add(DownloadInfo request) {
+        if (mIndex.containsKey(request.getArticleId())) {
+            return false;
+        }
+        Node node = new Node(request, getHost(hostOf(request.getUrl())), mSequence++, now());
+        insert(node);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Removes and returns the next request of a host under its limit, waiting until there is
+     * one. The download counts against the limit of its host until {@link #finished(String)}
+     * is called.
+     */
+    synchronized DownloadInfo take() throws InterruptedException {
+        return takeEntry().mRequest;
+    }
+
+    /**
+     * Same as {@link #take()}, also returning the place the request had in the queue so it
+     * can be put back there with {@link #requeue}.
+     */
+    synchronized Taken takeEntry() throws InterruptedException {
+        Node node;
+        while ((node = selectNext(null)) == null) {
+            wait();
+        }
+        delete(node);
+        Host host = node.mHost;
+        if (host.mRunning++ == 0) {
+            host.mActiveSinceMs = now();
+        }
+        host.mLastServed = ++mServedCount;
+        return new Taken(node.mRequest, node.mSequence, node.mAddedAtMs);
+    }
+
+    /**
+     * Puts back a request that was taken and stopped before it completed, in the place it had
+     * when it was taken: it keeps its order among the requests of its priority and the head
+     * start it earned with aging.
+     *
+     * @param sequence  order of addition of the request, from {@link Taken#mSequence}
+     * @param addedAtMs time the request was added, from {@link Taken#mAddedAtMs}
+     * @return false if a request with the same id was queued in the mean time
+     */
+    synchronized boolean requeue(DownloadInfo request, long sequence, long addedAtMs) {
+        if (mIndex.containsKey(request.getArticleId())) {
+            return false;
+        }
+        insert(new Node(request, getHost(hostOf(request.getUrl())), sequence, addedAtMs));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Frees the place of a download taken from the queue in the limit of its host.
+     *
+     * @param host host of the download url, as returned by {@link #hostOf(String)}
+     */
+    synchronized void finished(String host) {
+        Host entry = mHosts.get(host);
+        if (entry == null || entry.mRunning == 0) {
+            return;
+        }
+        if (--entry.mRunning == 0) {
+            entry.mActiveTimeMs += now() - entry.mActiveSinceMs;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the request that will be taken next, null if the queue is empty or all the
+     * hosts with queued requests are at their limit.
+     */
+    synchronized DownloadInfo peek() {
+        Node node = selectNext(null);
+        return node == null ? null : node.mRequest;
+    }
+
+    /**
+     * Returns the request that would be taken next once a download of the given host
+     * finished, null if there would be none.
+     *
+     * @param host host of the running download, as returned by {@link #hostOf(String)}
+     */
+    synchronized DownloadInfo peekAfterFinished(String host) {
+        Node node = selectNext(mHosts.get(host));
+        return node == null ? null : node.mRequest;
+    }
+
+    /**
+     * Returns true if a request of the host can be taken now, false if the host is at its
+     * limit.
+     *
+     * @param host host of the request, as returned by {@link #hostOf(String)}
+     */
+    synchronized boolean hasFreeSlot(String host) {
+        Host entry = mHosts.get(host);
+        return entry == null || entry.hasFreeSlot(0);
+    }
+
+    /**
+     * Returns the queued request with the given id, null if not found.
+     */
+    synchronized DownloadInfo get(String articleId) {
+        Node node = mIndex.get(articleId);
+        return node == null ? null : node.mRequest;
+    }
+
+    synchronized boolean contains(String articleId) {
+        return mIndex.containsKey(articleId);
+    }
+
+    /**
+     * Removes the request with the given id.
+     *
+     * @return the removed request, null if it wasn't queued
+     */
+    synchronized DownloadInfo remove(String articleId) {
+        Node node = mIndex.get(articleId);
+        if (node == null) {
+            return null;
+        }
+        delete(node);
+        return node.mRequest;
+    }
+
+    /**
+     * Changes the priority of a queued request, it keeps its place among the requests of
+     * the new priority that were added before it.
+     *
+     * @return false if the request isn't queued
+     */
+    synchronized boolean updatePriority(String articleId, DownloadRequest.Priority priority) {
+        Node node = mIndex.get(articleId);
+        if (node == null) {
+            return false;
+        }
+        delete(node);
+        insert(new Node(node.mRequest.withPriority(priority), node.mHost, node.mSequence,
+                node.mAddedAtMs));
+        return true;
+    }
+
+    synchronized void clear() {
+        mIndex.clear();
+        mOrdered.clear();
+        for (Host host : mHosts.values()) {
+            host.mQueued.clear();
+        }
+    }
+
+    synchronized int size() {
+        return mIndex.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return mIndex.isEmpty();
+    }
+
+    /**
+     * Returns a copy of the queued requests in priority order, safe to iterate while the
+     * queue changes. The host limits and the rotation between the hosts can change the order
+     * they are taken in.
+     */
+    synchronized List<DownloadInfo> snapshot() {
+        List<DownloadInfo> requests = new ArrayList<>(mOrdered.size());
+        for (Node node : mOrdered) {
+            requests.add(node.mRequest);
+        }
+        return requests;
+    }
+
+    /**
+     * Returns the stats of every host seen so far.
+     *
+     * @param meter counts the bytes downloaded from each host
+     */
+    synchronized List<HostStats> getHostStats(BandwidthLimiter meter) {
+        List<HostStats> stats = new ArrayList<>(mHosts.size());
+        long now = now();
+        for (Host host : mHosts.values()) {
+            long activeTimeMs = host.mActiveTimeMs;
+            if (host.mRunning > 0) {
+                activeTimeMs += now - host.mActiveSinceMs;
+            }
+            stats.add(new HostStats(host.mName, host.mRunning, host.mQueued.size(),
+                    meter.getTransferredBytes(host.mName), activeTimeMs));
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the host the downloads of a url are grouped by, empty if the url can't be parsed.
+     */
+    static String hostOf(String url) {
+        try {
+            String host = new URL(url).getHost();
+            return host == null ? "" : host.toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private Host getHost(String name) {
+        Host host = mHosts.get(name);
+        if (host == null) {
+            host = new Host(name);
+            mHosts.put(name, host);
+        }
+        return host;
+    }
+
+    private void insert(Node node) {
+        mIndex.put(node.mRequest.getArticleId(), node);
+        mOrdered.add(node);
+        node.mHost.mQueued.add(node);
+    }
+
+    private void delete(Node node) {
+        mIndex.remove(node.mRequest.getArticleId());
+        mOrdered.remove(node);
+        node.mHost.mQueued.remove(node);
+    }
+
+    /**
+     * Picks the next request among the first ones of the hosts under their limit. The hosts
+     * whose first request comes before any request of another priority take turns, the one
+     * served the longest time ago wins.
+     *
+     * @param finished host counted with one running download less, null for none
+     * @return null if no request can be taken
+     */
+    private Node selectNext(Host finished) {
+        List<Node> heads = new ArrayList<>();
+        for (Host host : mHosts.values()) {
+            if (!host.mQueued.isEmpty() && host.hasFreeSlot(host == finished ? 1 : 0)) {
+                heads.add(host.mQueued.first());
+            }
+        }
+        if (heads.isEmpty()) {
+            return null;
+        }
+        Collections.sort(heads);
+        Node next = heads.get(0);
+        for (int i = 1; i < heads.size() && heads.get(i).mPriority == next.mPriority; i++) {
+            if (heads.get(i).mHost.mLastServed < next.mHost.mLastServed) {
+                next = heads.get(i);
+            }
+        }
+        return next;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Requests and running downloads of one host.
+     */
+    private class Host {
+        final String mName;
+        final TreeSet<Node> mQueued = new TreeSet<>();
+        int mRunning = 0;
+
+        /**
+         * Value of {@link #mServedCount} when a request of the host was last taken, 0 if never
+         */
+        long mLastServed = 0;
+
+        /**
+         * Time at least one download of the host was running, up to {@link #mActiveSinceMs}
+         */
+        long mActiveTimeMs = 0;
+        long mActiveSinceMs;
+
+        Host(String name) {
+            mName = name;
+        }
+
+        /**
+         * @param finished running downloads of the host not to count
+         */
+        boolean hasFreeSlot(int finished) {
+            return mMaxDownloadsPerHost == NO_HOST_LIMIT || mRunning - finished < mMaxDownloadsPerHost;
+        }
+    }
+
+    /**
+     * Request taken from the queue with the place it had in it
+     */
+    static final class Taken {
+        final DownloadInfo mRequest;
+        final long mSequence;
+        final long mAddedAtMs;
+
+        Taken(DownloadInfo request, long sequence, long addedAtMs) {
+            mRequest = request;
+            mSequence = sequence;
+            mAddedAtMs = addedAtMs;
+        }
+    }
+
+    /**
+     * Entry of the ordered sets, replaced when the priority of its request changes.
+     */
+    private class Node implements Comparable<Node> {
+        final DownloadInfo mRequest;
+        final Host mHost;
+        final int mPriority;
+        final long mSequence;
+        final long mAddedAtMs;
+
+        /**
+         * Time the request would have been added at without its head start, the earliest
+         * goes first when aging is enabled
+         */
+        final long mAgedKey;
+
+        Node(DownloadInfo request, Host host, long sequence, long addedAtMs) {
+            mRequest = request;
+            mHost = host;
+            mPriority = request.getPriority();
+            mSequence = sequence;
+            mAddedAtMs = addedAtMs;
+            mAgedKey = addedAtMs - (mPriority - DownloadRequest.Priority.LOW.getValue()) * mAgingIntervalMs;
+        }
+
+        boolean isImmediate() {
+            return mPriority == DownloadRequest.Priority.IMMEDIATE.getValue();
+        }
+
+        @Override
+        public int compareTo(Node other) {
+            if (mAgingIntervalMs > 0 && !isImmediate() && !other.isImmediate()) {
+                if (mAgedKey != other.mAgedKey) {
+                    return mAgedKey < other.mAgedKey ? -1 : 1;
+                }
+            } else if (mPriority != other.mPriority) {
+                // Higher priorities first.
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            // Then the order of addition.
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
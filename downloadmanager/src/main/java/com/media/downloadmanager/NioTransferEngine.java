@@ -0,0 +1,84 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Transfer engine reading the stream through a channel into a large direct buffer and
+ * writing it with positional writes, so a full buffer goes to the disk in one call without
+ * being copied again.
+ * <p>
+ * The buffer is filled as far as the stream goes before it is written, the reads are still
+ * interleaved with checks for a stop request.
+ */
+class NioTransferEngine extends TransferEngine {
+
+    NioTransferEngine(int bufferSize, BufferPool bufferPool) {
+        super(bufferSize, bufferPool);
+    }
+
+    @Override
+    int transfer(InputStream in, FileChannel out, long position, long limit, Callback callback) {
+        ByteBuffer buffer = mBufferPool.acquire(mBufferSize, true);
+        try {
+            return transfer(Channels.newChannel(in), out, position, limit, callback, buffer);
+        } finally {
+            mBufferPool.release(buffer);
+        }
+    }
+
+    private int transfer(ReadableByteChannel source, FileChannel out, long position, long limit,
+                         Callback callback, ByteBuffer buffer) {
+        for (; ; ) {
+            long remaining = limit == NO_LIMIT ? Long.MAX_VALUE : limit - position - buffer.position();
+            boolean stopped = callback.isStopRequested();
+            int bytesRead = 0;
+            int readError = RESULT_END_OF_STREAM;
+            if (!stopped && remaining > 0) {
+                if (remaining < buffer.remaining()) {
+                    buffer.limit(buffer.position() + (int) remaining);
+                }
+                try {
+                    bytesRead = source.read(buffer);
+                } catch (IOException e) {
+                    readError = getReadErrorResult(e);
+                    bytesRead = -1;
+                }
+            }
+            boolean done = stopped || remaining <= 0 || bytesRead < 0;
+            if (buffer.hasRemaining() && !done) {
+                continue;
+            }
+
+            // Buffer full or nothing more to read, write what we have.
+            if (buffer.position() > 0) {
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return RESULT_WRITE_ERROR;
+                }
+                callback.onBytesWritten(position);
+            }
+            buffer.clear();
+            buffer.limit(mBufferSize);
+
+            if (stopped) {
+                return RESULT_STOPPED;
+            } else if (readError != RESULT_END_OF_STREAM) {
+                return readError;
+            } else if (done) {
+                return RESULT_END_OF_STREAM;
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.media.downloadmanager;
+
+import android.util.Log;
+
+import com.media.downloadmanager.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Transfer engine running the network reads and the disk writes on two threads, so a slow
+ * disk doesn't keep the socket from being read.
+ * <p>
+ * A reader thread fills pooled buffers from the stream and hands them over through a bounded
+ * ring. The calling thread writes them to the file and runs the callback, so the checkpoints
+ * still happen on the dispatcher thread. When the ring is full the reader waits for the
+ * writer.
+ */
+class PipelinedTransferEngine extends TransferEngine {
+
+    private static final String TAG = "PipelinedTransferEngine";
+
+    /**
+     * Marks the end of the buffers handed over by the reader
+     */
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final int mRingSize;
+
+    PipelinedTransferEngine(int bufferSize, int ringSize, BufferPool bufferPool) {
+        super(bufferSize, bufferPool);
+        mRingSize = ringSize;
+    }
+
+    @Override
+    int transfer(InputStream in, FileChannel out, long position, long limit, Callback callback) {
+        Reader reader = new Reader(Channels.newChannel(in), position, limit);
+        reader.setName(Thread.currentThread().getName() + "-reader");
+        reader.start();
+        try {
+            return write(reader, out, position, callback);
+        } finally {
+            reader.mStopped = true;
+            reader.interrupt();
+            reader.drain();
+        }
+    }
+
+    private int write(Reader reader, FileChannel out, long position, Callback callback) {
+        for (; ; ) {
+            if (callback.isStopRequested()) {
+                return RESULT_STOPPED;
+            }
+            ByteBuffer buffer;
+            try {
+                buffer = reader.mRing.take();
+            } catch (InterruptedException e) {
+                return RESULT_STOPPED;
+            }
+            if (buffer == END_OF_STREAM) {
+                return reader.mResult;
+            }
+            try {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return RESULT_WRITE_ERROR;
+            } finally {
+                mBufferPool.release(buffer);
+            }
+            callback.onBytesWritten(position);
+        }
+    }
+
+    /**
+     * Network stage, reads the stream into buffers and queues them for the writer.
+     */
+    private class Reader extends Thread {
+
+        private final ReadableByteChannel mSource;
+        private final BlockingQueue<ByteBuffer> mRing = new ArrayBlockingQueue<>(mRingSize);
+        private final long mLimit;
+        private long mPosition;
+        private volatile boolean mStopped = false;
+        private volatile int mResult = RESULT_END_OF_STREAM;
+
+        Reader(ReadableByteChannel source, long position, long limit) {
+            mSource = source;
+            mPosition = position;
+            mLimit = limit;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mStopped) {
+                    ByteBuffer buffer = mBufferPool.acquire(mBufferSize, true);
+                    boolean endOfStream = fill(buffer);
+                    if (buffer.position() > 0) {
+                        try {
+                            mRing.put(buffer);
+                        } catch (InterruptedException e) {
+                            mBufferPool.release(buffer);
+                            throw e;
+                        }
+                    } else {
+                        mBufferPool.release(buffer);
+                    }
+                    if (endOfStream) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Reader interrupted");
+            } finally {
+                try {
+                    // Once stopped the writer is gone and doesn't wait for the marker.
+                    if (!mStopped) {
+                        mRing.put(END_OF_STREAM);
+                    }
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Reader interrupted");
+                }
+                if (mStopped) {
+                    drain();
+                }
+            }
+        }
+
+        /**
+         * Reads into the buffer until it is full or the stream is over.
+         *
+         * @return true if nothing more should be read
+         */
+        private boolean fill(ByteBuffer buffer) {
+            while (buffer.hasRemaining() && !mStopped) {
+                if (mLimit != NO_LIMIT) {
+                    long remaining = mLimit - mPosition;
+                    if (remaining <= 0) {
+                        return true;
+                    }
+                    if (remaining < buffer.remaining()) {
+                        buffer.limit(buffer.position() + (int) remaining);
+                    }
+                }
+                int bytesRead;
+                try {
+                    bytesRead = mSource.read(buffer);
+                } catch (IOException e) {
+                    mResult = getReadErrorResult(e);
+                    return true;
+                }
+                if (bytesRead < 0) {
+                    return true;
+                }
+                mPosition += bytesRead;
+            }
+            return mLimit != NO_LIMIT && mPosition >= mLimit;
+        }
+
+        /**
+         * Gives the queued buffers back to the pool.
+         */
+        void drain() {
+            ByteBuffer buffer;
+            while ((buffer = mRing.poll()) != null) {
+                if (buffer != END_OF_STREAM) {
+                    mBufferPool.release(buffer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.media.downloadmanager;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Validator of a download made over a single connection, kept in a small file next to the
+ * destination.
+ * <p>
+ * It is saved when the download starts and sent in an If-Range header when it resumes, a
+ * server whose file changed since answers with the whole new file instead of the missing
+ * range. The Content-Range of a partial answer is checked too, so a server ignoring the
+ * validator can't append a range that doesn't start where the download stopped.
+ */
+final class ResumeState {
+
+    private static final String TAG = "ResumeState";
+
+    /**
+     * Suffix of the file holding the validator of a download
+     */
+    private static final String STATE_FILE_SUFFIX = ".validator";
+
+    private ResumeState() {
+    }
+
+    /**
+     * Saves the validator of the download, an empty one deletes the saved one.
+     *
+     * @param validator validator as returned by {@link SegmentedDownloader#getValidator}
+     */
+    static void save(String destinationPath, String validator) {
+        if (validator.isEmpty()) {
+            delete(destinationPath);
+            return;
+        }
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(getStateFile(destinationPath));
+            writer.write(validator + '\n');
+        } catch (IOException e) {
+            // The download then resumes without If-Range, the Content-Range is still checked.
+            Log.e(TAG, "Unable to save the validator of " + destinationPath, e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Returns the saved validator of the download, empty if there is none.
+     */
+    static String load(String destinationPath) {
+        File stateFile = getStateFile(destinationPath);
+        if (!stateFile.exists()) {
+            return "";
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(stateFile));
+            String validator = reader.readLine();
+            return validator == null ? "" : validator.trim();
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to read the validator of " + destinationPath + " " + e.getMessage());
+            return "";
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    static void delete(String destinationPath) {
+        File stateFile = getStateFile(destinationPath);
+        if (stateFile.exists()) {
+            stateFile.delete();
+        }
+    }
+
+    /**
+     * Returns true if the Content-Range of a partial response starts at the given offset and,
+     * when both are known, gives the same file length.
+     *
+     * @param contentRange value of the Content-Range header, null if missing
+     * @param length       length of the file, 0 or less if unknown
+     */
+    static boolean isRangeFrom(String contentRange, long offset, long length) {
+        if (contentRange == null) {
+            return false;
+        }
+        String range = contentRange.trim();
+        if (!range.regionMatches(true, 0, "bytes", 0, 5)) {
+            return false;
+        }
+        int dash = range.indexOf('-');
+        int slash = range.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return false;
+        }
+        try {
+            if (Long.parseLong(range.substring(5, dash).trim()) != offset) {
+                return false;
+            }
+            String total = range.substring(slash + 1).trim();
+            return length <= 0 || total.equals("*") || Long.parseLong(total) == length;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static File getStateFile(String destinationPath) {
+        return new File(destinationPath + STATE_FILE_SUFFIX);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
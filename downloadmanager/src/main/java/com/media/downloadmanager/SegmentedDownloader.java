@@ -0,0 +1,566 @@
+package com.media.downloadmanager;
+
+import android.util.Log;
+
+import com.media.downloadmanager.utils.BufferPool;
+import com.media.downloadmanager.utils.ConnectionManager;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+/**
+ * Downloads a single file over several connections, each one fetching its own byte range
+ * with a Range request and writing it at its offset in the destination file.
+ * <p>
+ * The ranges and their progress are kept in a small state file next to the destination so
+ * that a paused or failed download continues every range where it stopped. The state file
+ * is only written after the destination was synced, following the {@link CheckpointPolicy}.
+ * The state also keeps the validator of the file, its strong ETag or else its Last-Modified
+ * date. Every range request carries it in an If-Range header, a server whose file changed
+ * since answers with the whole new file and the download starts over instead of splicing
+ * the new content into the old ranges.
+ * <p>
+ * {@link #download(Listener)} blocks the calling thread. The progress and checkpoint
+ * callbacks of the {@link Listener} are made on that thread, the connection and pacer ones
+ * on the segment threads.
+ */
+class SegmentedDownloader {
+
+    private static final String TAG = "SegmentedDownloader";
+
+    static final int RESULT_COMPLETE = 0;
+    static final int RESULT_STOPPED = 1;
+    static final int RESULT_FAILED = 2;
+    static final int RESULT_RANGE_NOT_SUPPORTED = 3;
+    static final int RESULT_CHANGED = 4;
+    static final int RESULT_TIMED_OUT = 5;
+    private static final int RESULT_RUNNING = -1;
+
+    /**
+     * Suffix of the file holding the ranges of a segmented download
+     */
+    private static final String STATE_FILE_SUFFIX = ".segments";
+
+    /**
+     * How often the calling thread reports progress and checks if it should stop
+     */
+    private static final long MONITOR_INTERVAL_MS = 500;
+
+    private final URL mUrl;
+    private final File mDestination;
+    private final long mContentLength;
+
+    /**
+     * Validator sent in the If-Range header, empty if the server gave none
+     */
+    private final String mValidator;
+    private final Segment[] mSegments;
+    private SegmentWorker[] mWorkers;
+    private volatile boolean mStopped = false;
+    private volatile Listener mListener;
+    private int mTimeoutMs = 0;
+
+    /**
+     * Listener of a segmented download
+     */
+    interface Listener {
+
+        /**
+         * Returns false once the download should be stopped
+         */
+        boolean isActive();
+
+        /**
+         * Called periodically with the number of bytes written in all the segments together
+         */
+        void onProgress(long downloadedBytes);
+
+        /**
+         * Called after the ranges were synced and saved, with the bytes they hold together
+         */
+        void onCheckpoint(long downloadedBytes);
+
+        /**
+         * Called from a segment thread once it opened its connection. Disconnecting it stops
+         * the segment at once.
+         */
+        void onConnectionOpened(HttpURLConnection conn);
+
+        /**
+         * Called from a segment thread before its connection is released
+         */
+        void onConnectionReleased(HttpURLConnection conn);
+
+        /**
+         * Returns the pacer limiting the rate of a segment, called once by every segment
+         */
+        BandwidthLimiter.Pacer newPacer();
+    }
+
+    /**
+     * Creates a new segmented download of a file of known length.
+     *
+     * @param segmentCount number of ranges the file is split in
+     * @param validator    validator of the file as returned by {@link #getValidator}
+     */
+    SegmentedDownloader(URL url, File destination, long contentLength, int segmentCount,
+                        String validator) {
+        this(url, destination, contentLength, validator, split(contentLength, segmentCount));
+    }
+
+    private SegmentedDownloader(URL url, File destination, long contentLength, String validator,
+                                Segment[] segments) {
+        mUrl = url;
+        mDestination = destination;
+        mContentLength = contentLength;
+        mValidator = validator;
+        mSegments = segments;
+    }
+
+    /**
+     * Returns the value identifying the version of the file of a response, usable in an
+     * If-Range header: the ETag unless it is weak, else the Last-Modified date, else empty.
+     */
+    static String getValidator(HttpURLConnection conn) {
+        String eTag = conn.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        String lastModified = conn.getHeaderField("Last-Modified");
+        return lastModified == null ? "" : lastModified;
+    }
+
+    /**
+     * Returns true if the destination has the state of a previous segmented download.
+     */
+    static boolean hasSavedState(String destinationPath) {
+        return getStateFile(destinationPath).exists() && new File(destinationPath).exists();
+    }
+
+    /**
+     * Deletes the state file of a segmented download, if any.
+     */
+    static void deleteSavedState(String destinationPath) {
+        File stateFile = getStateFile(destinationPath);
+        if (stateFile.exists()) {
+            stateFile.delete();
+        }
+    }
+
+    /**
+     * Restores a segmented download from its state file.
+     *
+     * @return the restored download or null if the state file can't be read
+     */
+    static SegmentedDownloader restore(URL url, String destinationPath) {
+        File stateFile = getStateFile(destinationPath);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(stateFile));
+            long contentLength = Long.parseLong(reader.readLine().trim());
+            int count = Integer.parseInt(reader.readLine().trim());
+            Segment[] segments = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                String[] values = reader.readLine().trim().split(" ");
+                segments[i] = new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]));
+                segments[i].mPosition = Long.parseLong(values[2]);
+            }
+            String validator = reader.readLine();
+            return new SegmentedDownloader(url, new File(destinationPath), contentLength,
+                    validator == null ? "" : validator, segments);
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "Unable to restore segments of " + destinationPath + " " + e.getMessage());
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static File getStateFile(String destinationPath) {
+        return new File(destinationPath + STATE_FILE_SUFFIX);
+    }
+
+    private static Segment[] split(long contentLength, int segmentCount) {
+        long segmentSize = contentLength / segmentCount;
+        Segment[] segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = i * segmentSize;
+            long end = i == segmentCount - 1 ? contentLength - 1 : start + segmentSize - 1;
+            segments[i] = new Segment(start, end);
+        }
+        return segments;
+    }
+
+    long getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * Returns the number of bytes written in all the segments together.
+     */
+    long getDownloadedBytes() {
+        long downloaded = 0;
+        for (Segment segment : mSegments) {
+            downloaded += segment.mPosition - segment.mStart;
+        }
+        return downloaded;
+    }
+
+    /**
+     * Sets the connect and read timeout of every segment connection, 0 keeps the platform one.
+     */
+    void setTimeout(int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Downloads all the unfinished segments in parallel and blocks until they are all done,
+     * one of them failed or the listener asked to stop.
+     *
+     * @param configuration gives the checkpoint policy and the transfer engine of the segments
+     * @param bufferPool    pool the segments borrow their transfer buffers from
+     * @return one of the RESULT_ constants
+     */
+    int download(Listener listener, DownloadConfiguration configuration, BufferPool bufferPool) {
+        if (!prepareDestination()) {
+            return RESULT_FAILED;
+        }
+        CheckpointPolicy checkpointPolicy = CheckpointPolicy.from(configuration);
+        checkpointPolicy.reset(getDownloadedBytes());
+        mListener = listener;
+        mWorkers = new SegmentWorker[mSegments.length];
+        for (int i = 0; i < mSegments.length; i++) {
+            mWorkers[i] = new SegmentWorker(mSegments[i], TransferEngine.create(configuration, bufferPool));
+            mWorkers[i].setName(Thread.currentThread().getName() + "-segment-" + i);
+            mWorkers[i].start();
+        }
+
+        boolean interrupted = false;
+        SegmentWorker worker;
+        while ((worker = getFirstAliveWorker()) != null) {
+            try {
+                worker.join(MONITOR_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                mStopped = true;
+            }
+            long downloadedBytes = getDownloadedBytes();
+            listener.onProgress(downloadedBytes);
+            if (!listener.isActive() || hasWorkerFailed()) {
+                mStopped = true;
+            }
+            if (checkpointPolicy.shouldCheckpoint(downloadedBytes) && checkpoint()) {
+                checkpointPolicy.onCheckpoint(downloadedBytes);
+                listener.onCheckpoint(downloadedBytes);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        int result = getResult();
+        if (result == RESULT_COMPLETE || result == RESULT_RANGE_NOT_SUPPORTED
+                || result == RESULT_CHANGED) {
+            deleteSavedState(mDestination.getPath());
+        } else if (checkpoint()) {
+            listener.onCheckpoint(getDownloadedBytes());
+        }
+        Log.d(TAG, "Segmented download of " + mDestination.getPath() + " finished with " + result);
+        return result;
+    }
+
+    /**
+     * Makes sure the destination exists with its final length so that every segment can be
+     * written at its offset.
+     */
+    private boolean prepareDestination() {
+        RandomAccessFile file = null;
+        try {
+            mDestination.getParentFile().mkdirs();
+            file = new RandomAccessFile(mDestination, "rw");
+            if (file.length() != mContentLength) {
+                file.setLength(mContentLength);
+            }
+            saveState(getPositions());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private SegmentWorker getFirstAliveWorker() {
+        for (SegmentWorker worker : mWorkers) {
+            if (worker.isAlive()) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasWorkerFailed() {
+        for (SegmentWorker worker : mWorkers) {
+            if (worker.mResult == RESULT_FAILED || worker.mResult == RESULT_RANGE_NOT_SUPPORTED
+                    || worker.mResult == RESULT_CHANGED || worker.mResult == RESULT_TIMED_OUT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getResult() {
+        int result = RESULT_COMPLETE;
+        for (SegmentWorker worker : mWorkers) {
+            if (worker.mResult == RESULT_CHANGED) {
+                return RESULT_CHANGED;
+            }
+        }
+        for (SegmentWorker worker : mWorkers) {
+            if (worker.mResult == RESULT_RANGE_NOT_SUPPORTED) {
+                return RESULT_RANGE_NOT_SUPPORTED;
+            } else if (worker.mResult == RESULT_FAILED) {
+                result = RESULT_FAILED;
+            } else if (worker.mResult == RESULT_TIMED_OUT && result != RESULT_FAILED) {
+                result = RESULT_TIMED_OUT;
+            } else if (worker.mResult != RESULT_COMPLETE && result == RESULT_COMPLETE) {
+                result = RESULT_STOPPED;
+            }
+        }
+        return result;
+    }
+
+    private long[] getPositions() {
+        long[] positions = new long[mSegments.length];
+        for (int i = 0; i < mSegments.length; i++) {
+            positions[i] = mSegments[i].mPosition;
+        }
+        return positions;
+    }
+
+    /**
+     * Syncs the destination and then saves the positions the segments had before the sync,
+     * so the state file never points past data that is on the disk.
+     *
+     * @return true if the state was saved
+     */
+    private boolean checkpoint() {
+        long[] positions = getPositions();
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mDestination, "rw");
+            file.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(file);
+        }
+        return saveState(positions);
+    }
+
+    /**
+     * Writes the ranges, the given positions and the validator to the state file.
+     */
+    private boolean saveState(long[] positions) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(getStateFile(mDestination.getPath()));
+            StringBuilder builder = new StringBuilder();
+            builder.append(mContentLength).append('\n').append(mSegments.length).append('\n');
+            for (int i = 0; i < mSegments.length; i++) {
+                builder.append(mSegments[i].mStart).append(' ')
+                        .append(mSegments[i].mEnd).append(' ')
+                        .append(positions[i]).append('\n');
+            }
+            builder.append(mValidator).append('\n');
+            writer.write(builder.toString());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns false if the response carries a validator other than the saved one.
+     */
+    private boolean isSameFile(HttpURLConnection conn) {
+        return mValidator.isEmpty() || mValidator.equals(getValidator(conn));
+    }
+
+    /**
+     * Returns false if the Content-Range of a partial response gives another file length.
+     */
+    private boolean hasContentLength(HttpURLConnection conn) {
+        String contentRange = conn.getHeaderField("Content-Range");
+        int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return true;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim()) == mContentLength;
+        } catch (NumberFormatException e) {
+            // An unknown length, "*".
+            return true;
+        }
+    }
+
+    /**
+     * A byte range of the file, both ends included. Position is the next byte to be written.
+     */
+    private static class Segment {
+        final long mStart;
+        final long mEnd;
+        volatile long mPosition;
+
+        Segment(long start, long end) {
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+        }
+
+        boolean isComplete() {
+            return mPosition > mEnd;
+        }
+    }
+
+    /**
+     * Fetches a single segment with a Range request.
+     */
+    private class SegmentWorker extends Thread {
+
+        private final Segment mSegment;
+        private final TransferEngine mEngine;
+        private volatile int mResult = RESULT_RUNNING;
+
+        SegmentWorker(Segment segment, TransferEngine engine) {
+            mSegment = segment;
+            mEngine = engine;
+        }
+
+        @Override
+        public void run() {
+            if (mSegment.isComplete()) {
+                mResult = RESULT_COMPLETE;
+                return;
+            }
+            HttpURLConnection conn = null;
+            InputStream in = null;
+            RandomAccessFile out = null;
+            boolean reusable = false;
+            try {
+                conn = ConnectionManager.getInstance().open(mUrl, new ConnectionManager.StopSignal() {
+                    @Override
+                    public boolean isStopRequested() {
+                        return mStopped;
+                    }
+                });
+                mListener.onConnectionOpened(conn);
+                conn.setInstanceFollowRedirects(false);
+                conn.setConnectTimeout(mTimeoutMs);
+                conn.setReadTimeout(mTimeoutMs);
+                conn.addRequestProperty("Range", "bytes=" + mSegment.mPosition + "-" + mSegment.mEnd);
+                if (!mValidator.isEmpty()) {
+                    conn.addRequestProperty("If-Range", mValidator);
+                }
+
+                final int responseCode = conn.getResponseCode();
+                if (responseCode == HTTP_OK) {
+                    // Either the server ignored the Range header or the file changed.
+                    mResult = isSameFile(conn) ? RESULT_RANGE_NOT_SUPPORTED : RESULT_CHANGED;
+                    Log.d(TAG, "Range request answered with the whole file, result " + mResult);
+                    return;
+                } else if (responseCode != HTTP_PARTIAL) {
+                    Log.d(TAG, "Range request answered with " + responseCode);
+                    mResult = RESULT_FAILED;
+                    return;
+                } else if (!hasContentLength(conn)) {
+                    // A server without validators still gives the length of the file.
+                    Log.d(TAG, "Length of " + mUrl + " changed");
+                    mResult = RESULT_CHANGED;
+                    return;
+                }
+
+                in = conn.getInputStream();
+                out = new RandomAccessFile(mDestination, "rw");
+                final BandwidthLimiter.Pacer pacer = mListener.newPacer();
+                int result = mEngine.transfer(in, out.getChannel(), mSegment.mPosition,
+                        mSegment.mEnd + 1, new TransferEngine.Callback() {
+                            @Override
+                            public boolean isStopRequested() {
+                                return mStopped;
+                            }
+
+                            @Override
+                            public void onBytesWritten(long position) {
+                                long written = position - mSegment.mPosition;
+                                mSegment.mPosition = position;
+                                pacer.pace(written, this);
+                            }
+                        });
+                if (result == TransferEngine.RESULT_STOPPED) {
+                    mResult = RESULT_STOPPED;
+                } else if (result == TransferEngine.RESULT_TIMEOUT) {
+                    mResult = RESULT_TIMED_OUT;
+                } else if (result == TransferEngine.RESULT_END_OF_STREAM && mSegment.isComplete()) {
+                    mResult = RESULT_COMPLETE;
+                    reusable = true;
+                } else {
+                    Log.d(TAG, "Segment ended at " + mSegment.mPosition + " before " + mSegment.mEnd);
+                    mResult = RESULT_FAILED;
+                }
+            } catch (SocketTimeoutException e) {
+                Log.d(TAG, "Segment timed out " + e.getMessage());
+                mResult = mStopped ? RESULT_STOPPED : RESULT_TIMED_OUT;
+            } catch (IOException e) {
+                e.printStackTrace();
+                mResult = mStopped ? RESULT_STOPPED : RESULT_FAILED;
+            } finally {
+                closeQuietly(in);
+                closeQuietly(out);
+                if (conn != null) {
+                    mListener.onConnectionReleased(conn);
+                }
+                ConnectionManager.getInstance().release(conn, reusable);
+            }
+        }
+    }
+}
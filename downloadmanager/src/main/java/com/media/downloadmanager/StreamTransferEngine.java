@@ -0,0 +1,63 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Transfer engine reading the stream into a heap array, one read per write.
+ */
+class StreamTransferEngine extends TransferEngine {
+
+    StreamTransferEngine(int bufferSize, BufferPool bufferPool) {
+        super(bufferSize, bufferPool);
+    }
+
+    @Override
+    int transfer(InputStream in, FileChannel out, long position, long limit, Callback callback) {
+        ByteBuffer buffer = mBufferPool.acquire(mBufferSize, false);
+        try {
+            return transfer(in, out, position, limit, callback, buffer);
+        } finally {
+            mBufferPool.release(buffer);
+        }
+    }
+
+    private int transfer(InputStream in, FileChannel out, long position, long limit,
+                         Callback callback, ByteBuffer buffer) {
+        final byte[] data = buffer.array();
+        final int bufferSize = buffer.limit();
+        for (; ; ) {
+            if (limit != NO_LIMIT && position >= limit) {
+                return RESULT_END_OF_STREAM;
+            }
+            if (callback.isStopRequested()) {
+                return RESULT_STOPPED;
+            }
+            int toRead = limit == NO_LIMIT ? bufferSize : (int) Math.min(bufferSize, limit - position);
+            int bytesRead;
+            try {
+                bytesRead = in.read(data, 0, toRead);
+            } catch (IOException e) {
+                return getReadErrorResult(e);
+            }
+            if (bytesRead == -1) {
+                return RESULT_END_OF_STREAM;
+            }
+            try {
+                buffer.clear();
+                buffer.limit(bytesRead);
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return RESULT_WRITE_ERROR;
+            }
+            callback.onBytesWritten(position);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies a response body into the destination file. The dispatcher and the segment workers
+ * each own an engine, so an engine is not thread safe. Engines borrow their buffer from the
+ * shared {@link BufferPool} for the length of a transfer.
+ */
+abstract class TransferEngine {
+
+    static final int RESULT_END_OF_STREAM = 0;
+    static final int RESULT_STOPPED = 1;
+    static final int RESULT_READ_ERROR = 2;
+    static final int RESULT_WRITE_ERROR = 3;
+    static final int RESULT_TIMEOUT = 4;
+
+    /**
+     * Used when the transfer should go on until the end of the stream
+     */
+    static final long NO_LIMIT = -1;
+
+    /**
+     * Callback of a running transfer, called on the thread running it
+     */
+    interface Callback {
+
+        /**
+         * Checked before every read, the transfer stops once it returns true
+         */
+        boolean isStopRequested();
+
+        /**
+         * Called after every write with the file position right after the written data
+         */
+        void onBytesWritten(long position);
+    }
+
+    final int mBufferSize;
+    final BufferPool mBufferPool;
+
+    TransferEngine(int bufferSize, BufferPool bufferPool) {
+        mBufferSize = bufferSize;
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Creates the engine selected in the configuration.
+     */
+    static TransferEngine create(DownloadConfiguration configuration, BufferPool bufferPool) {
+        switch (configuration.getTransferEngine()) {
+            case DownloadConfiguration.TRANSFER_ENGINE_STREAM:
+                return new StreamTransferEngine(configuration.getBufferSize(), bufferPool);
+            case DownloadConfiguration.TRANSFER_ENGINE_PIPELINED:
+                return new PipelinedTransferEngine(configuration.getBufferSize(),
+                        configuration.getPipelineDepth(), bufferPool);
+            case DownloadConfiguration.TRANSFER_ENGINE_NIO:
+            default:
+                return new NioTransferEngine(configuration.getBufferSize(), bufferPool);
+        }
+    }
+
+    /**
+     * Copies the stream into the file starting at the given position.
+     *
+     * @param in       the response body
+     * @param out      the destination file
+     * @param position offset in the file of the first byte of the stream
+     * @param limit    position at which the transfer is done even if the stream goes on,
+     *                 {@link #NO_LIMIT} to copy until the end of the stream
+     * @param callback callback of the transfer
+     * @return one of the RESULT_ constants
+     */
+    abstract int transfer(InputStream in, FileChannel out, long position, long limit,
+                          Callback callback);
+
+    /**
+     * Returns the result of a transfer whose read failed. Some servers close the connection
+     * instead of ending the body properly, that is handled as the end of the stream.
+     */
+    static int getReadErrorResult(IOException e) {
+        if ("unexpected end of stream".equals(e.getMessage())) {
+            return RESULT_END_OF_STREAM;
+        }
+        return e instanceof SocketTimeoutException ? RESULT_TIMEOUT : RESULT_READ_ERROR;
+    }
+}
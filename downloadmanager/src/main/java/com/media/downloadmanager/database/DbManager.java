@@ -2,18 +2,19 @@ package com.media.downloadmanager.database;
 
 import android.util.Log;
 
-import com.media.downloadmanager.application.ApplicationClass;
 import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
 import com.media.downloadmanager.model.DownloadRequest;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
-import io.realm.Realm;
-import io.realm.RealmConfiguration;
 import io.realm.RealmList;
-import io.realm.RealmObject;
-import io.realm.RealmResults;
-import io.realm.Sort;
 
 public class DbManager {
 
@@ -21,21 +22,68 @@ public class DbManager {
     private IDbCallback mTransactionCallback;
     private static final String TAG = DbManager.class.getName();
 
-    private DbManager() {
-        initRealm();
+    /**
+     * Entries read from the store at a time by {@link #iterateDownloads()}
+     */
+    static final int ITERATOR_PAGE_SIZE = 100;
+
+    /**
+     * Saves the downloads, Realm unless another store was set with {@link #init(DownloadStore)}
+     */
+    private final DownloadStore mStore;
+
+    /**
+     * Commits the writes to the store in the background
+     */
+    private final WriteBehindQueue mWriteQueue;
+
+    /**
+     * State and progress of the items seen so far, answers the state checks without
+     * querying the store
+     */
+    private final DownloadStateCache mCache = new DownloadStateCache();
+
+    /**
+     * Visible for the tests, the app goes through {@link #getInstance()}.
+     */
+    DbManager(DownloadStore store) {
+        mStore = store;
+        mWriteQueue = new WriteBehindQueue(store);
+        mWriteQueue.start();
     }
 
-    public static DbManager getInstance() {
+    public static synchronized DbManager getInstance() {
         if (sManagerInstance == null) {
-            sManagerInstance = new DbManager();
+            sManagerInstance = new DbManager(new RealmDownloadStore());
         }
         return sManagerInstance;
     }
 
-    private void initRealm() {
-        RealmConfiguration config = new RealmConfiguration.Builder(ApplicationClass.getContext())
-                .build();
-        Realm.setDefaultConfiguration(config);
+    /**
+     * Creates the instance on top of the given store. Has no effect once the instance
+     * exists.
+     *
+     * @param store storage backend of the downloads
+     */
+    public static synchronized void init(DownloadStore store) {
+        if (sManagerInstance != null) {
+            Log.d(TAG, "Already initialized, ignoring " + store.getClass().getName());
+            return;
+        }
+        sManagerInstance = new DbManager(store);
+    }
+
+    /**
+     * Keeps the store open for the reads of the calling thread until {@link #closeSession()},
+     * for threads reading many times like the download dispatchers. Every call must be
+     * matched by a call to closeSession() on the same thread.
+     */
+    public void openSession() {
+        mStore.openSession();
+    }
+
+    public void closeSession() {
+        mStore.closeSession();
     }
 
     /**
@@ -48,34 +96,173 @@ public class DbManager {
     }
 
     /**
-     * Insert the specified object into database
+     * Inserts or updates an item. The cache is updated at once and the write is committed
+     * in the background, locked so both see the writes to an item in the same order.
+     *
+     * @param info new state of the item
+     */
+    public synchronized void put(DownloadInfo info) {
+        mCache.put(info);
+        mWriteQueue.put(info);
+    }
+
+    /**
+     * Inserts or updates all the items, committed in the background with the next batch
+     *
+     * @param infos new states of the items
+     */
+    public void putAll(Collection<DownloadInfo> infos) {
+        for (DownloadInfo info : infos) {
+            put(info);
+        }
+    }
+
+    /**
+     * Insert the specified object into database. The write is committed in the background,
+     * reads see it right away.
      *
      * @param object              RealmObject to be inserted
      * @param transactionListener callback listener for the transaction
      */
     public void insert(DownloadRequest object, final IDbCallback transactionListener) {
-        Realm realm = Realm.getDefaultInstance();
-        realm.beginTransaction();
-        realm.copyToRealmOrUpdate(object);
-        realm.commitTransaction();
-        realm.close();
+        put(DownloadRequestMapper.toInfo(object));
+    }
+
+    /**
+     * Insert or update all the specified objects into database, committed in the background
+     * in a single transaction
+     *
+     * @param objects RealmObjects to be inserted
+     */
+    public void insertAll(Collection<DownloadRequest> objects) {
+        putAll(DownloadRequestMapper.toInfos(objects));
+    }
+
+    /**
+     * Blocks until all the writes made so far are committed.
+     *
+     * @return false if the store failed to write them, they are retried in the background
+     */
+    public boolean flush() {
+        return mWriteQueue.flush();
     }
 
     /**
-     * Returns the entire list of entries.
+     * Returns the entire list of entries, newest first. Holds the whole history in memory,
+     * prefer {@link #iterateDownloads()}.
      */
     public RealmList<DownloadRequest> getAllDownloads() {
-        Realm realm = Realm.getDefaultInstance();
-        RealmResults<DownloadRequest> results = realm.where(DownloadRequest.class).
-                findAllSorted(DownloadRequest.TIME_STAMP, Sort.DESCENDING);
         RealmList<DownloadRequest> list = new RealmList<>();
-        for (DownloadRequest d : results) {
-            list.add(realm.copyFromRealm(d));
+        Iterator<DownloadInfo> iterator = iterateDownloads();
+        while (iterator.hasNext()) {
+            list.add(DownloadRequestMapper.toEntity(iterator.next()));
         }
-        realm.close();
         return list;
     }
 
+    /**
+     * Returns a page of entries, newest first. The page is read from the store with the
+     * writes not committed yet merged in, it never waits for them. Prefer
+     * {@link #getDownloadsAfter} when walking through all the pages, skipping the offset
+     * costs more with every page.
+     *
+     * @param offset number of entries to skip
+     * @param limit  maximum number of entries returned
+     */
+    public List<DownloadInfo> getDownloads(int offset, int limit) {
+        Map<String, DownloadInfo> uncommitted = mWriteQueue.getUncommitted();
+        // Every uncommitted write can hide one entry of the store before the end of the page.
+        int end = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        int storeLimit = (int) Math.min(Integer.MAX_VALUE, (long) end + uncommitted.size());
+        List<DownloadInfo> merged = merge(mStore.getPage(0, storeLimit), uncommitted, null);
+        if (offset >= merged.size()) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(merged.subList(offset, Math.min(end, merged.size())));
+    }
+
+    /**
+     * Returns the page of entries that follows the given one, newest first. Entries added
+     * or removed in between don't shift the pages.
+     * <p>
+     * The page is read from the store, with the writes not committed yet merged in. Every
+     * uncommitted write can hide one entry of the store page, so as many more are read.
+     *
+     * @param last  last entry of the previous page, null for the first page
+     * @param limit maximum number of entries returned
+     */
+    public List<DownloadInfo> getDownloadsAfter(DownloadInfo last, int limit) {
+        Map<String, DownloadInfo> uncommitted = mWriteQueue.getUncommitted();
+        int storeLimit = (int) Math.min(Integer.MAX_VALUE, (long) limit + uncommitted.size());
+        List<DownloadInfo> page = merge(mStore.getPageAfter(last, storeLimit), uncommitted, last);
+        return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+    }
+
+    /**
+     * Replaces the entries of a store page by their uncommitted writes and sorts the result.
+     *
+     * @param last only the uncommitted entries after it are added, null for all of them
+     */
+    private static List<DownloadInfo> merge(List<DownloadInfo> storePage,
+                                            Map<String, DownloadInfo> uncommitted,
+                                            DownloadInfo last) {
+        List<DownloadInfo> page = new ArrayList<>();
+        for (DownloadInfo info : storePage) {
+            if (!uncommitted.containsKey(info.getArticleId())) {
+                page.add(info);
+            }
+        }
+        for (DownloadInfo info : uncommitted.values()) {
+            if (info != null && (last == null || DownloadStore.NEWEST_FIRST.compare(info, last) > 0)) {
+                page.add(info);
+            }
+        }
+        Collections.sort(page, DownloadStore.NEWEST_FIRST);
+        return page;
+    }
+
+    /**
+     * Returns an iterator over all the entries, newest first. The entries are read from the
+     * store {@link #ITERATOR_PAGE_SIZE} at a time as the iteration goes. Removing an entry
+     * through the iterator deletes it like {@link #delete(String)}.
+     */
+    public Iterator<DownloadInfo> iterateDownloads() {
+        return new Iterator<DownloadInfo>() {
+            private List<DownloadInfo> mPage = getDownloadsAfter(null, ITERATOR_PAGE_SIZE);
+            private int mNext = 0;
+            private String mLastId;
+
+            @Override
+            public boolean hasNext() {
+                if (mNext == mPage.size() && mPage.size() == ITERATOR_PAGE_SIZE) {
+                    mPage = getDownloadsAfter(mPage.get(mPage.size() - 1), ITERATOR_PAGE_SIZE);
+                    mNext = 0;
+                }
+                return mNext < mPage.size();
+            }
+
+            @Override
+            public DownloadInfo next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                DownloadInfo next = mPage.get(mNext++);
+                mLastId = next.getArticleId();
+                return next;
+            }
+
+            @Override
+            public void remove() {
+                if (mLastId == null) {
+                    throw new IllegalStateException("next() wasn't called");
+                }
+                // The next pages start after the last entry read, deleting it doesn't shift them.
+                delete(mLastId);
+                mLastId = null;
+            }
+        };
+    }
+
 
     /**
      * Returns the item
@@ -83,27 +270,57 @@ public class DbManager {
      * @param value the id of the item to be returned
      */
     public DownloadRequest getDownloadRequest(String value) {
-        Realm realm = Realm.getDefaultInstance();
-        DownloadRequest results = realm.where(DownloadRequest.class).
-                equalTo(DownloadRequest.ARTICLE_ID, value).findFirst();
-        DownloadRequest downloadRequest = null;
-        if (results != null) {
-            downloadRequest = realm.copyFromRealm(results);
+        DownloadInfo info = getDownloadInfo(value);
+        return info == null ? null : DownloadRequestMapper.toEntity(info);
+    }
+
+    /**
+     * Returns the item, null if it isn't in the database. A write not committed yet is
+     * returned as it is, otherwise the item is read from the store.
+     *
+     * @param value the id of the item to be returned
+     */
+    public DownloadInfo getDownloadInfo(String value) {
+        Map<String, DownloadInfo> uncommitted = mWriteQueue.getUncommitted();
+        DownloadInfo info = uncommitted.containsKey(value)
+                ? uncommitted.get(value) : mStore.get(value);
+        mCache.fill(value, info);
+        return info;
+    }
+
+    /**
+     * Returns the state of the item, -1 if it isn't in the database
+     *
+     * @param value the id of the item
+     */
+    public int getDownloadState(String value) {
+        int state = mCache.getDownloadState(value);
+        if (state == DownloadStateCache.UNKNOWN) {
+            DownloadInfo info = getDownloadInfo(value);
+            state = info == null ? DownloadStateCache.ABSENT : info.getDownloadState();
+        }
+        return state;
+    }
+
+    /**
+     * Returns the progress of the item in percent, 0 if it isn't in the database
+     *
+     * @param value the id of the item
+     */
+    public int getProgress(String value) {
+        int progress = mCache.getProgress(value);
+        if (progress == DownloadStateCache.UNKNOWN) {
+            DownloadInfo info = getDownloadInfo(value);
+            progress = info == null ? 0 : info.getProgress();
         }
-        realm.close();
-        return downloadRequest;
+        return progress;
     }
 
     /**
      * Returns if any unfinished download is there
      */
     public boolean ifPendingItemPresent() {
-        Realm realm = Realm.getDefaultInstance();
-        RealmObject result = realm.where(DownloadRequest.class).
-                equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_QUEUE).or().
-                equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_PROGRESS).findFirst();
-        boolean value = result != null && result.isValid();
-        realm.close();
+        boolean value = !getPendingItems().isEmpty();
         Log.d(TAG, "Pending items " + value);
         return value;
     }
@@ -111,57 +328,51 @@ public class DbManager {
     /**
      * Update the specified objects into database.
      * Database should contain the entry with the primary key specified in param object.
-     * Otherwise insert the entry.
+     * Otherwise insert the entry. The write is committed in the background.
      *
      * @param object RealmObject to be updated
      */
     public void update(DownloadRequest object) {
-        Realm realm = Realm.getDefaultInstance();
-        realm.beginTransaction();
-        realm.copyToRealmOrUpdate(object);
-        realm.commitTransaction();
-        realm.close();
-    }
-
-    public void delete(String articleId) {
-        Realm realm = Realm.getDefaultInstance();
-        DownloadRequest downloadRequest = realm.where(DownloadRequest.class).
-                equalTo(DownloadRequest.ARTICLE_ID, articleId).findFirst();
-        if (downloadRequest != null) {
-            realm.beginTransaction();
-            downloadRequest.deleteFromRealm();
-            realm.commitTransaction();
+        put(DownloadRequestMapper.toInfo(object));
+    }
+
+    public synchronized void delete(String articleId) {
+        mCache.remove(articleId);
+        mWriteQueue.delete(articleId);
+    }
+
+    /**
+     * Returns the unfinished downloads, newest first. They are queried from the store, with
+     * the writes not committed yet merged in.
+     */
+    public List<DownloadInfo> getPendingItems() {
+        Map<String, DownloadInfo> uncommitted = mWriteQueue.getUncommitted();
+        List<DownloadInfo> pending = new ArrayList<>();
+        for (DownloadInfo info : mStore.getPending()) {
+            if (!uncommitted.containsKey(info.getArticleId())) {
+                pending.add(info);
+            }
+        }
+        for (DownloadInfo info : uncommitted.values()) {
+            if (info != null && isPending(info)) {
+                pending.add(info);
+            }
         }
-        realm.close();
+        Collections.sort(pending, DownloadStore.NEWEST_FIRST);
+        return pending;
     }
 
-    public List<DownloadRequest> getPendingItems() {
-        Realm realm = Realm.getDefaultInstance();
-        RealmResults<DownloadRequest> results = realm.where(DownloadRequest.class).
-                equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_QUEUE).or().
-                equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_PROGRESS).
-                findAllSorted(DownloadRequest.TIME_STAMP, Sort.DESCENDING);
-        List<DownloadRequest> resultList = realm.copyFromRealm(results);
-        realm.close();
-        return resultList;
+    private static boolean isPending(DownloadInfo info) {
+        return info.getDownloadState() == IDownloadState.IN_QUEUE
+                || info.getDownloadState() == IDownloadState.IN_PROGRESS;
     }
 
     public boolean isDownloaded(String id) {
-        Realm realm = Realm.getDefaultInstance();
-        DownloadRequest result = realm.where(DownloadRequest.class).
-                equalTo(DownloadRequest.ARTICLE_ID, id).findFirst();
-        boolean value = result != null && result.isValid() && result.getDownloadState() == IDownloadState.COMPLETE;
-        realm.close();
-        return value;
-
+        return getDownloadState(id) == IDownloadState.COMPLETE;
     }
 
     public boolean isAlreadyAddedToDb(String articleId) {
-        Realm realm = Realm.getDefaultInstance();
-        DownloadRequest result = realm.where(DownloadRequest.class).
-                equalTo(DownloadRequest.ARTICLE_ID, articleId).findFirst();
-        boolean value = result != null && result.getDownloadState() != IDownloadState.FAILED;
-        realm.close();
-        return value;
+        int state = getDownloadState(articleId);
+        return state != DownloadStateCache.ABSENT && state != IDownloadState.FAILED;
     }
 }
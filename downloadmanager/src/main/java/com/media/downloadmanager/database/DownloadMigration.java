@@ -0,0 +1,49 @@
+package com.media.downloadmanager.database;
+
+import android.util.Log;
+
+import com.media.downloadmanager.model.DownloadRequest;
+
+import io.realm.DynamicRealm;
+import io.realm.RealmMigration;
+import io.realm.RealmObjectSchema;
+
+/**
+ * Upgrades the schema of an existing database to {@link #SCHEMA_VERSION}.
+ */
+public class DownloadMigration implements RealmMigration {
+
+    private static final String TAG = DownloadMigration.class.getName();
+
+    /**
+     * Version 1 indexes the state and the time stamp of the requests
+     */
+    public static final long SCHEMA_VERSION = 1;
+
+    @Override
+    public void migrate(DynamicRealm realm, long oldVersion, long newVersion) {
+        Log.d(TAG, "Migrating from " + oldVersion + " to " + newVersion);
+        if (oldVersion == 0) {
+            RealmObjectSchema schema = realm.getSchema().get(DownloadRequest.class.getSimpleName());
+            addIndex(schema, DownloadRequest.DOWNLOAD_STATE);
+            addIndex(schema, DownloadRequest.TIME_STAMP);
+            oldVersion++;
+        }
+    }
+
+    private static void addIndex(RealmObjectSchema schema, String field) {
+        if (!schema.hasIndex(field)) {
+            schema.addIndex(field);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DownloadMigration;
+    }
+
+    @Override
+    public int hashCode() {
+        return DownloadMigration.class.hashCode();
+    }
+}
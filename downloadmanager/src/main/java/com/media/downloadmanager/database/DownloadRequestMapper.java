@@ -0,0 +1,51 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.model.DownloadInfo;
+import com.media.downloadmanager.model.DownloadRequest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maps between the persisted {@link DownloadRequest} and the in memory {@link DownloadInfo}.
+ */
+public class DownloadRequestMapper {
+
+    private DownloadRequestMapper() {
+    }
+
+    /**
+     * Reads the state of a managed or unmanaged request.
+     */
+    public static DownloadInfo toInfo(DownloadRequest request) {
+        return new DownloadInfo(request.getArticleId(), request.getUrl(),
+                request.isDownloadOnWiFi(), request.getDestinationPath(),
+                request.getTimeStamp(), request.getPriority(), request.getDownloadState(),
+                request.getDownloadedBytes(), request.getTotalBytes(), request.getProgress(),
+                request.getRetryPolicy());
+    }
+
+    public static List<DownloadInfo> toInfos(Collection<DownloadRequest> requests) {
+        List<DownloadInfo> infos = new ArrayList<>(requests.size());
+        for (DownloadRequest request : requests) {
+            infos.add(toInfo(request));
+        }
+        return infos;
+    }
+
+    /**
+     * Returns a new unmanaged request holding the given state.
+     */
+    public static DownloadRequest toEntity(DownloadInfo info) {
+        DownloadRequest request = new DownloadRequest(info.getArticleId(), info.getUrl(),
+                info.isDownloadOnWiFi(), info.getDestinationPath(), info.getTimeStamp());
+        request.setPriority(DownloadRequest.Priority.fromValue(info.getPriority()));
+        request.setDownloadState(info.getDownloadState());
+        request.setDownloadedBytes(info.getDownloadedBytes());
+        request.setTotalBytes(info.getTotalBytes());
+        request.setProgress(info.getProgress());
+        request.setRetryPolicy(info.getRetryPolicy());
+        return request;
+    }
+}
@@ -0,0 +1,91 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.model.DownloadInfo;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State and progress of the download requests read or written so far, keyed by article id.
+ * <p>
+ * It starts empty. {@link DbManager} records every request it writes, and fills in the
+ * others the first time they are read from the store, so it already holds the writes that
+ * are not committed yet. Only the two numbers are kept per request, the rest of the history
+ * stays in the store. A request known to be missing is recorded too, the state checks of
+ * unknown ids don't query the store again.
+ * <p>
+ * Writes must not run concurrently, reads and fills can run at any time. A fill never
+ * replaces what a write recorded.
+ */
+class DownloadStateCache {
+
+    /**
+     * State returned for a request that isn't in the store
+     */
+    static final int ABSENT = -1;
+
+    /**
+     * State returned for a request that isn't cached, it has to be read from the store
+     */
+    static final int UNKNOWN = -2;
+
+    private static final State MISSING = new State(ABSENT, 0);
+
+    private final ConcurrentHashMap<String, State> mStates = new ConcurrentHashMap<>();
+
+    /**
+     * Records the state written for a request.
+     */
+    void put(DownloadInfo request) {
+        mStates.put(request.getArticleId(), new State(request.getDownloadState(), request.getProgress()));
+    }
+
+    /**
+     * Records that a request was deleted.
+     */
+    void remove(String articleId) {
+        mStates.put(articleId, MISSING);
+    }
+
+    /**
+     * Records the state read from the store, unless a write recorded one in the mean time.
+     *
+     * @param request request read, null if the store doesn't have it
+     */
+    void fill(String articleId, DownloadInfo request) {
+        State state = request == null
+                ? MISSING : new State(request.getDownloadState(), request.getProgress());
+        mStates.putIfAbsent(articleId, state);
+    }
+
+    /**
+     * Returns the state of the request, {@link #ABSENT} if it isn't stored and
+     * {@link #UNKNOWN} if it isn't cached.
+     */
+    int getDownloadState(String articleId) {
+        State state = mStates.get(articleId);
+        return state == null ? UNKNOWN : state.mDownloadState;
+    }
+
+    /**
+     * Returns the progress of the request, 0 if it isn't stored and {@link #UNKNOWN} if it
+     * isn't cached.
+     */
+    int getProgress(String articleId) {
+        State state = mStates.get(articleId);
+        return state == null ? UNKNOWN : state.mProgress;
+    }
+
+    int size() {
+        return mStates.size();
+    }
+
+    private static final class State {
+        final int mDownloadState;
+        final int mProgress;
+
+        State(int downloadState, int progress) {
+            mDownloadState = downloadState;
+            mProgress = progress;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.model.DownloadInfo;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage backend persisting the downloads for {@link DbManager}.
+ * <p>
+ * DbManager only keeps the state of the downloads it has seen in memory, it reads the
+ * downloads from the store one at a time or a page at a time. The store doesn't have to hold
+ * the history in memory either. The writes are handed over in batches, all from the same
+ * background thread. The reads can come from any thread, also while a batch is written.
+ */
+public interface DownloadStore {
+
+    /**
+     * Order of the pages, newest downloads first, then by article id so that every download
+     * has its own place
+     */
+    Comparator<DownloadInfo> NEWEST_FIRST = new Comparator<DownloadInfo>() {
+        @Override
+        public int compare(DownloadInfo left, DownloadInfo right) {
+            long leftTime = left.getTimeStamp();
+            long rightTime = right.getTimeStamp();
+            if (leftTime != rightTime) {
+                return leftTime > rightTime ? -1 : 1;
+            }
+            return left.getArticleId().compareTo(right.getArticleId());
+        }
+    };
+
+    /**
+     * Keeps what the reads of the calling thread need open until {@link #closeSession()}, for
+     * threads reading many times over their life. The calls nest, and every call must be
+     * matched by a call to closeSession() on the same thread.
+     */
+    void openSession();
+
+    void closeSession();
+
+    /**
+     * Returns the download with the given id, null if it isn't saved.
+     */
+    DownloadInfo get(String articleId);
+
+    /**
+     * Returns the downloads queued or in progress in {@link #NEWEST_FIRST} order. Asked
+     * for when the download service starts, the stores answer it from an index on the state
+     * rather than by reading every download.
+     */
+    List<DownloadInfo> getPending();
+
+    /**
+     * Returns at most limit downloads in {@link #NEWEST_FIRST} order, skipping the first
+     * offset ones.
+     */
+    List<DownloadInfo> getPage(int offset, int limit);
+
+    /**
+     * Returns at most limit downloads that come after the given one in
+     * {@link #NEWEST_FIRST} order.
+     *
+     * @param last last download of the previous page, null for the first page
+     */
+    List<DownloadInfo> getPageAfter(DownloadInfo last, int limit);
+
+    /**
+     * Saves a batch of writes, as atomically as the store allows.
+     *
+     * @param batch new state of every changed download by article id, a null value deletes
+     *              the download
+     */
+    void write(Map<String, DownloadInfo> batch);
+}
@@ -0,0 +1,623 @@
+package com.media.downloadmanager.database;
+
+import android.util.Log;
+
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Store appending every write to a journal file, made for the frequent progress updates of
+ * the running downloads.
+ * <p>
+ * A write only appends a record at the end of the file, a progress update that leaves the
+ * request itself unchanged is written as a short record holding the state and the byte
+ * counts. Once the journal holds more than {@link #COMPACTION_RATIO} records per download,
+ * it is rewritten with one record per download into a new file that replaces the old one.
+ * <p>
+ * The journal is replayed on first use into a small index holding, for every download, its
+ * time stamp, its progress and the offset of its latest full record, with the pending
+ * downloads indexed apart. The rest of a download is read back from that record when it is
+ * asked for, so only the pages being read are in memory.
+ * <p>
+ * Every record carries its length and a checksum, a record cut short by a crash is dropped
+ * when the journal is replayed. The records of a batch are handed to the system in a single
+ * write and only applied to the index once it succeeded, a failed write is cut from the file
+ * before the next one. Batches are only synced to the disk when the journal is compacted,
+ * so a power loss can lose the last updates. The retry policies are not saved.
+ * <p>
+ * A journal that can't be replayed, such as one with a record that passes its checksum but
+ * can't be parsed, is never written to or cut. Every call fails until it loads.
+ * <p>
+ * All the methods are synchronized.
+ */
+public class JournalDownloadStore implements DownloadStore {
+
+    private static final String TAG = "JournalDownloadStore";
+
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_PROGRESS = 2;
+    private static final int RECORD_DELETE = 3;
+
+    /**
+     * Length and checksum in front of every record
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * State and byte counts at the end of the put and progress records
+     */
+    private static final int PROGRESS_SIZE = 4 + 8 + 8 + 4;
+
+    /**
+     * Records per download over which the journal is compacted
+     */
+    public static final int COMPACTION_RATIO = 4;
+
+    /**
+     * Journals of fewer records are never compacted
+     */
+    public static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry left, Entry right) {
+            if (left.mTimeStamp != right.mTimeStamp) {
+                return left.mTimeStamp > right.mTimeStamp ? -1 : 1;
+            }
+            return left.mArticleId.compareTo(right.mArticleId);
+        }
+    };
+
+    private final File mFile;
+
+    /**
+     * Index of the live downloads by article id, and newest first
+     */
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final TreeSet<Entry> mOrdered = new TreeSet<>(NEWEST_FIRST);
+
+    /**
+     * Live downloads queued or in progress, newest first
+     */
+    private final TreeSet<Entry> mPending = new TreeSet<>(NEWEST_FIRST);
+
+    private FileOutputStream mOut;
+    private RandomAccessFile mReader;
+    private int mRecordCount = 0;
+    private boolean mLoaded = false;
+
+    /**
+     * Length of the journal up to the last record written successfully
+     */
+    private long mValidLength = 0;
+
+    /**
+     * Records of the batch being written, each behind its length and checksum
+     */
+    private final ByteArrayOutputStream mBatchBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mBatch = new DataOutputStream(mBatchBytes);
+    private int mBatchRecordCount;
+
+    private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * @param file journal file, created if it doesn't exist
+     */
+    public JournalDownloadStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Nothing to do, the reader of the journal is shared by all the threads.
+     */
+    @Override
+    public void openSession() {
+    }
+
+    @Override
+    public void closeSession() {
+    }
+
+    @Override
+    public synchronized DownloadInfo get(String articleId) {
+        ensureLoaded();
+        Entry entry = mEntries.get(articleId);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return read(entry);
+        } catch (IOException e) {
+            closeReader();
+            throw new IllegalStateException("Journal read failed", e);
+        }
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getPending() {
+        ensureLoaded();
+        return read(mPending.iterator(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getPage(int offset, int limit) {
+        ensureLoaded();
+        Iterator<Entry> iterator = mOrdered.iterator();
+        for (int i = 0; i < offset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        return read(iterator, limit);
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getPageAfter(DownloadInfo last, int limit) {
+        ensureLoaded();
+        Iterator<Entry> iterator = last == null ? mOrdered.iterator()
+                : mOrdered.tailSet(new Entry(last.getArticleId(), last.getTimeStamp(), 0, 0), false)
+                .iterator();
+        return read(iterator, limit);
+    }
+
+    @Override
+    public synchronized void write(Map<String, DownloadInfo> batch) {
+        ensureLoaded();
+        Map<String, Entry> puts = new HashMap<>();
+        try {
+            mBatchBytes.reset();
+            mBatchRecordCount = 0;
+            for (Map.Entry<String, DownloadInfo> write : batch.entrySet()) {
+                DownloadInfo info = write.getValue();
+                Entry previous = mEntries.get(write.getKey());
+                if (info == null) {
+                    if (previous != null) {
+                        buildDelete(write.getKey());
+                        appendRecord(mBatch);
+                    }
+                    continue;
+                }
+                long fingerprint = buildPut(info);
+                if (previous != null && previous.mFingerprint == fingerprint) {
+                    buildProgress(info);
+                } else {
+                    Entry entry = new Entry(info.getArticleId(), info.getTimeStamp(), fingerprint,
+                            mValidLength + mBatchBytes.size());
+                    entry.setProgress(info);
+                    puts.put(info.getArticleId(), entry);
+                }
+                appendRecord(mBatch);
+            }
+            if (mBatchRecordCount == 0) {
+                return;
+            }
+            if (mOut == null) {
+                mOut = openForAppend();
+            }
+            mBatch.flush();
+            mBatchBytes.writeTo(mOut);
+        } catch (IOException e) {
+            // Whatever part of the batch reached the file is cut before the next write.
+            closeQuietly();
+            throw new IllegalStateException("Journal write failed", e);
+        }
+        mValidLength += mBatchBytes.size();
+        mRecordCount += mBatchRecordCount;
+        for (Map.Entry<String, DownloadInfo> write : batch.entrySet()) {
+            Entry put = puts.get(write.getKey());
+            if (put != null) {
+                index(put);
+            } else if (write.getValue() == null) {
+                unindex(write.getKey());
+            } else {
+                Entry entry = mEntries.get(write.getKey());
+                entry.setProgress(write.getValue());
+                indexState(entry);
+            }
+        }
+        if (mRecordCount > Math.max(MIN_COMPACTION_RECORDS, mEntries.size() * COMPACTION_RATIO)) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // The journal itself is intact, the compaction is tried again with the next batch.
+                Log.e(TAG, "Compaction failed", e);
+                closeQuietly();
+            }
+        }
+    }
+
+    private void index(Entry entry) {
+        unindex(entry.mArticleId);
+        mEntries.put(entry.mArticleId, entry);
+        mOrdered.add(entry);
+        indexState(entry);
+    }
+
+    private void unindex(String articleId) {
+        Entry previous = mEntries.remove(articleId);
+        if (previous != null) {
+            mOrdered.remove(previous);
+            mPending.remove(previous);
+        }
+    }
+
+    /**
+     * Adds or removes the entry from the pending downloads after its state changed.
+     */
+    private void indexState(Entry entry) {
+        if (entry.mDownloadState == IDownloadState.IN_QUEUE
+                || entry.mDownloadState == IDownloadState.IN_PROGRESS) {
+            mPending.add(entry);
+        } else {
+            mPending.remove(entry);
+        }
+    }
+
+    /**
+     * Rewrites the journal with a single record per download, read one by one from the
+     * current journal.
+     */
+    private void compact() throws IOException {
+        Log.d(TAG, "Compacting " + mRecordCount + " records into " + mEntries.size());
+        closeQuietly();
+        File compacted = new File(mFile.getPath() + ".compact");
+        FileOutputStream fileOut = new FileOutputStream(compacted);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        Map<Entry, Long> offsets = new HashMap<>(mEntries.size());
+        long length = 0;
+        try {
+            for (Entry entry : mOrdered) {
+                offsets.put(entry, length);
+                buildPut(read(entry));
+                length += appendRecord(out);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        closeReader();
+        if (!compacted.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        for (Map.Entry<Entry, Long> offset : offsets.entrySet()) {
+            offset.getKey().mPutOffset = offset.getValue();
+        }
+        mValidLength = length;
+        mRecordCount = offsets.size();
+        mOut = openForAppend();
+    }
+
+    /**
+     * Opens the journal for appending, after cutting what a failed write left behind the
+     * last valid record.
+     */
+    private FileOutputStream openForAppend() throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        if (mFile.length() > mValidLength) {
+            Log.d(TAG, "Dropping " + (mFile.length() - mValidLength) + " bytes of failed writes");
+            truncate(mValidLength);
+        }
+        return new FileOutputStream(mFile, true);
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void closeQuietly() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close " + mFile, e);
+            }
+            mOut = null;
+        }
+    }
+
+    private void closeReader() {
+        if (mReader != null) {
+            try {
+                mReader.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close " + mFile, e);
+            }
+            mReader = null;
+        }
+    }
+
+    /**
+     * Builds the full record of a download in {@link #mRecordBytes}.
+     *
+     * @return fingerprint of the request fields, equal for two versions of the download
+     * that only differ by their progress
+     */
+    private long buildPut(DownloadInfo info) throws IOException {
+        mRecordBytes.reset();
+        mRecord.writeByte(RECORD_PUT);
+        mRecord.writeUTF(info.getArticleId());
+        writeString(mRecord, info.getUrl());
+        writeString(mRecord, info.getDestinationPath());
+        mRecord.writeBoolean(info.isDownloadOnWiFi());
+        mRecord.writeLong(info.getTimeStamp());
+        mRecord.writeInt(info.getPriority());
+        mRecord.flush();
+        long fingerprint = fingerprint(mRecordBytes.toByteArray(), 0, mRecordBytes.size());
+        writeProgress(info);
+        return fingerprint;
+    }
+
+    private void buildProgress(DownloadInfo info) throws IOException {
+        mRecordBytes.reset();
+        mRecord.writeByte(RECORD_PROGRESS);
+        mRecord.writeUTF(info.getArticleId());
+        writeProgress(info);
+    }
+
+    private void buildDelete(String articleId) throws IOException {
+        mRecordBytes.reset();
+        mRecord.writeByte(RECORD_DELETE);
+        mRecord.writeUTF(articleId);
+    }
+
+    private void writeProgress(DownloadInfo info) throws IOException {
+        mRecord.writeInt(info.getDownloadState());
+        mRecord.writeLong(info.getDownloadedBytes());
+        mRecord.writeLong(info.getTotalBytes());
+        mRecord.writeInt(info.getProgress());
+    }
+
+    /**
+     * Writes the record built in {@link #mRecordBytes} behind its length and checksum.
+     *
+     * @return number of bytes written
+     */
+    private int appendRecord(DataOutputStream out) throws IOException {
+        mRecord.flush();
+        byte[] bytes = mRecordBytes.toByteArray();
+        mCrc.reset();
+        mCrc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.writeInt((int) mCrc.getValue());
+        out.write(bytes);
+        if (out == mBatch) {
+            mBatchRecordCount++;
+        }
+        return HEADER_SIZE + bytes.length;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the given bytes.
+     */
+    private static long fingerprint(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Loads the index on first use. If the journal can't be read the store is left unloaded
+     * and the call fails, the load is tried again by the next call. Nothing is written to
+     * a journal that wasn't loaded, so its records are never cut.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mEntries.clear();
+        mOrdered.clear();
+        mPending.clear();
+        mRecordCount = 0;
+        mValidLength = 0;
+        if (mFile.exists()) {
+            try {
+                replay();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to load " + mFile, e);
+            }
+        }
+        mLoaded = true;
+        Log.d(TAG, "Loaded " + mEntries.size() + " downloads from " + mRecordCount + " records");
+    }
+
+    /**
+     * Builds the index from the records of the journal, read in order. The file is cut after
+     * the last valid record so the next writes don't follow a damaged one. A record that
+     * passes its checksum but can't be parsed fails the replay, the file is left as it is.
+     */
+    private void replay() throws IOException {
+        long fileLength = mFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            while (fileLength - mValidLength >= HEADER_SIZE) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0 || length > fileLength - mValidLength - HEADER_SIZE) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                mCrc.reset();
+                mCrc.update(record, 0, length);
+                if ((int) mCrc.getValue() != crc) {
+                    break;
+                }
+                try {
+                    applyRecord(record, mValidLength);
+                } catch (IOException e) {
+                    // Not an EOFException of the file, the record itself is unreadable.
+                    throw new IOException("Unreadable record at " + mValidLength, e);
+                }
+                mValidLength += HEADER_SIZE + length;
+                mRecordCount++;
+            }
+        } catch (EOFException e) {
+            Log.d(TAG, "Journal ends inside a record");
+        } finally {
+            in.close();
+        }
+        if (mValidLength < fileLength) {
+            Log.d(TAG, "Dropping " + (fileLength - mValidLength) + " bytes of damaged journal");
+            truncate(mValidLength);
+        }
+    }
+
+    /**
+     * Applies a record to the index.
+     *
+     * @param offset offset of the record in the journal
+     */
+    private void applyRecord(byte[] bytes, long offset) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        int type = record.readByte();
+        String articleId = record.readUTF();
+        switch (type) {
+            case RECORD_PUT:
+                readString(record);
+                readString(record);
+                record.readBoolean();
+                long timeStamp = record.readLong();
+                record.readInt();
+                Entry entry = new Entry(articleId, timeStamp,
+                        fingerprint(bytes, 0, bytes.length - PROGRESS_SIZE), offset);
+                entry.readProgress(record);
+                index(entry);
+                break;
+            case RECORD_PROGRESS:
+                Entry previous = mEntries.get(articleId);
+                if (previous != null) {
+                    previous.readProgress(record);
+                    indexState(previous);
+                }
+                break;
+            case RECORD_DELETE:
+                unindex(articleId);
+                break;
+            default:
+                Log.d(TAG, "Unknown record " + type);
+        }
+    }
+
+    private List<DownloadInfo> read(Iterator<Entry> entries, int limit) {
+        List<DownloadInfo> infos = new ArrayList<>(Math.min(limit, 64));
+        try {
+            while (infos.size() < limit && entries.hasNext()) {
+                infos.add(read(entries.next()));
+            }
+        } catch (IOException e) {
+            closeReader();
+            throw new IllegalStateException("Journal read failed", e);
+        }
+        return infos;
+    }
+
+    /**
+     * Reads the latest full record of a download and applies its current progress.
+     */
+    private DownloadInfo read(Entry entry) throws IOException {
+        if (mReader == null) {
+            mReader = new RandomAccessFile(mFile, "r");
+        }
+        mReader.seek(entry.mPutOffset);
+        byte[] bytes = new byte[mReader.readInt()];
+        mReader.readInt();
+        mReader.readFully(bytes);
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (record.readByte() != RECORD_PUT) {
+            throw new IOException("No record of " + entry.mArticleId + " at " + entry.mPutOffset);
+        }
+        String articleId = record.readUTF();
+        String url = readString(record);
+        String destinationPath = readString(record);
+        boolean downloadOnWiFi = record.readBoolean();
+        long timeStamp = record.readLong();
+        int priority = record.readInt();
+        return new DownloadInfo(articleId, url, downloadOnWiFi, destinationPath, timeStamp,
+                priority, entry.mDownloadState, entry.mDownloadedBytes, entry.mTotalBytes,
+                entry.mProgress, null);
+    }
+
+    /**
+     * Indexed state of a download.
+     */
+    private static final class Entry {
+        final String mArticleId;
+        final long mTimeStamp;
+        final long mFingerprint;
+
+        /**
+         * Offset of the latest full record of the download, moved by the compaction
+         */
+        long mPutOffset;
+
+        int mDownloadState;
+        long mDownloadedBytes;
+        long mTotalBytes;
+        int mProgress;
+
+        Entry(String articleId, long timeStamp, long fingerprint, long putOffset) {
+            mArticleId = articleId;
+            mTimeStamp = timeStamp;
+            mFingerprint = fingerprint;
+            mPutOffset = putOffset;
+        }
+
+        void setProgress(DownloadInfo info) {
+            mDownloadState = info.getDownloadState();
+            mDownloadedBytes = info.getDownloadedBytes();
+            mTotalBytes = info.getTotalBytes();
+            mProgress = info.getProgress();
+        }
+
+        void readProgress(DataInputStream record) throws IOException {
+            mDownloadState = record.readInt();
+            mDownloadedBytes = record.readLong();
+            mTotalBytes = record.readLong();
+            mProgress = record.readInt();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.media.downloadmanager.database;
+
+import android.content.Context;
+
+import com.media.downloadmanager.application.ApplicationClass;
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
+import com.media.downloadmanager.model.DownloadRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmQuery;
+import io.realm.RealmResults;
+import io.realm.Sort;
+
+/**
+ * Default store, saves the downloads as {@link DownloadRequest} objects in the default Realm.
+ * Every batch is committed in a single transaction.
+ * <p>
+ * The reads use the Realm of the calling thread from {@link RealmSession}, kept open
+ * between the reads while the thread has a session open and closed after the query
+ * otherwise. The results are lazy, only the rows of the page are read and copied out before
+ * the Realm is released.
+ */
+public class RealmDownloadStore implements DownloadStore {
+
+    /**
+     * Realm of the writer thread, kept open between the batches. Starting a transaction
+     * moves it to the latest version, it never serves stale data.
+     */
+    private Realm mWriterRealm;
+
+    /**
+     * Uses the context set in {@link ApplicationClass}.
+     */
+    public RealmDownloadStore() {
+        this(ApplicationClass.getContext());
+    }
+
+    public RealmDownloadStore(Context context) {
+        RealmConfiguration config = new RealmConfiguration.Builder(context)
+                .schemaVersion(DownloadMigration.SCHEMA_VERSION)
+                .migration(new DownloadMigration())
+                .build();
+        Realm.setDefaultConfiguration(config);
+    }
+
+    @Override
+    public void openSession() {
+        RealmSession.acquire();
+    }
+
+    @Override
+    public void closeSession() {
+        RealmSession.release();
+    }
+
+    @Override
+    public DownloadInfo get(String articleId) {
+        Realm realm = RealmSession.acquire();
+        try {
+            DownloadRequest request = realm.where(DownloadRequest.class)
+                    .equalTo(DownloadRequest.ARTICLE_ID, articleId).findFirst();
+            return request == null ? null : DownloadRequestMapper.toInfo(request);
+        } finally {
+            RealmSession.release();
+        }
+    }
+
+    @Override
+    public List<DownloadInfo> getPending() {
+        Realm realm = RealmSession.acquire();
+        try {
+            return DownloadRequestMapper.toInfos(findPending(realm));
+        } finally {
+            RealmSession.release();
+        }
+    }
+
+    /**
+     * Runs the pending downloads query on the state index.
+     */
+    static RealmResults<DownloadRequest> findPending(Realm realm) {
+        return realm.where(DownloadRequest.class)
+                .equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_QUEUE).or()
+                .equalTo(DownloadRequest.DOWNLOAD_STATE, IDownloadState.IN_PROGRESS)
+                .findAllSorted(DownloadRequest.TIME_STAMP, Sort.DESCENDING,
+                        DownloadRequest.ARTICLE_ID, Sort.ASCENDING);
+    }
+
+    @Override
+    public List<DownloadInfo> getPage(int offset, int limit) {
+        Realm realm = RealmSession.acquire();
+        try {
+            RealmResults<DownloadRequest> results = realm.where(DownloadRequest.class)
+                    .findAllSorted(DownloadRequest.TIME_STAMP, Sort.DESCENDING,
+                            DownloadRequest.ARTICLE_ID, Sort.ASCENDING);
+            int end = (int) Math.min(results.size(), (long) offset + limit);
+            List<DownloadInfo> page = new ArrayList<>(Math.max(end - offset, 0));
+            for (int i = offset; i < end; i++) {
+                page.add(DownloadRequestMapper.toInfo(results.get(i)));
+            }
+            return page;
+        } finally {
+            RealmSession.release();
+        }
+    }
+
+    /**
+     * Pages on the time stamp alone, Realm doesn't compare strings. The requests with the
+     * time stamp of the previous page end are filtered here, and the page is extended to
+     * every request with the time stamp of its own end, so the order between requests of
+     * the same time stamp is the one of {@link #NEWEST_FIRST}.
+     */
+    @Override
+    public List<DownloadInfo> getPageAfter(DownloadInfo last, int limit) {
+        Realm realm = RealmSession.acquire();
+        try {
+            RealmQuery<DownloadRequest> query = realm.where(DownloadRequest.class);
+            if (last != null) {
+                query.lessThanOrEqualTo(DownloadRequest.TIME_STAMP, last.getTimeStamp());
+            }
+            RealmResults<DownloadRequest> results =
+                    query.findAllSorted(DownloadRequest.TIME_STAMP, Sort.DESCENDING);
+            List<DownloadInfo> page = new ArrayList<>(Math.min(limit, 64));
+            for (int i = 0; i < results.size(); i++) {
+                DownloadRequest request = results.get(i);
+                if (page.size() >= limit && (page.isEmpty()
+                        || request.getTimeStamp() != page.get(page.size() - 1).getTimeStamp())) {
+                    break;
+                }
+                DownloadInfo info = DownloadRequestMapper.toInfo(request);
+                if (last == null || NEWEST_FIRST.compare(info, last) > 0) {
+                    page.add(info);
+                }
+            }
+            Collections.sort(page, NEWEST_FIRST);
+            return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+        } finally {
+            RealmSession.release();
+        }
+    }
+
+    @Override
+    public void write(Map<String, DownloadInfo> batch) {
+        if (mWriterRealm == null) {
+            mWriterRealm = Realm.getDefaultInstance();
+        }
+        Realm realm = mWriterRealm;
+        try {
+            realm.beginTransaction();
+            for (Map.Entry<String, DownloadInfo> write : batch.entrySet()) {
+                if (write.getValue() != null) {
+                    realm.copyToRealmOrUpdate(DownloadRequestMapper.toEntity(write.getValue()));
+                } else {
+                    DownloadRequest stored = realm.where(DownloadRequest.class).
+                            equalTo(DownloadRequest.ARTICLE_ID, write.getKey()).findFirst();
+                    if (stored != null) {
+                        stored.deleteFromRealm();
+                    }
+                }
+            }
+            realm.commitTransaction();
+        } catch (RuntimeException e) {
+            if (realm.isInTransaction()) {
+                realm.cancelTransaction();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.media.downloadmanager.database;
+
+import android.util.Log;
+
+import io.realm.Realm;
+
+/**
+ * Keeps one Realm instance per thread, shared by all the reads of {@link RealmDownloadStore}
+ * made on it.
+ * <p>
+ * {@link #acquire()} opens the Realm of the calling thread on first use and only counts the
+ * later calls, {@link #release()} closes it once every acquire was released. A long lived
+ * thread like a download dispatcher opens a session through
+ * {@link DbManager#openSession()} when it starts and closes it when it exits, so the reads
+ * made in between don't open and close the Realm every time.
+ * <p>
+ * A Realm kept open on a thread without a looper doesn't see the writes of the other
+ * threads by itself, so a reused instance is moved to the latest version before it is
+ * handed out again.
+ */
+class RealmSession {
+
+    private static final String TAG = RealmSession.class.getName();
+
+    private static final ThreadLocal<RealmSession> sSessions = new ThreadLocal<>();
+
+    private final Realm mRealm;
+    private int mRefCount = 0;
+
+    private RealmSession(Realm realm) {
+        mRealm = realm;
+    }
+
+    /**
+     * Returns the Realm of the calling thread, every call must be matched by a call to
+     * {@link #release()} on the same thread.
+     */
+    static Realm acquire() {
+        RealmSession session = sSessions.get();
+        if (session == null) {
+            session = new RealmSession(Realm.getDefaultInstance());
+            sSessions.set(session);
+        } else {
+            session.advance();
+        }
+        session.mRefCount++;
+        return session.mRealm;
+    }
+
+    /**
+     * Releases the Realm of the calling thread, it is closed with the last release.
+     */
+    static void release() {
+        RealmSession session = sSessions.get();
+        if (session == null) {
+            Log.d(TAG, "Released without a session on " + Thread.currentThread().getName());
+            return;
+        }
+        if (--session.mRefCount == 0) {
+            sSessions.remove();
+            session.mRealm.close();
+        }
+    }
+
+    /**
+     * Moves the Realm to the latest version. Starting a write transaction always does, so
+     * an empty one is started and cancelled.
+     */
+    private void advance() {
+        if (!mRealm.isInTransaction()) {
+            mRealm.beginTransaction();
+            mRealm.cancelTransaction();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.media.downloadmanager.database;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.media.downloadmanager.model.DownloadInfo;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Single writer thread persisting the download requests in the background.
+ * <p>
+ * Callers hand over the new state of a request and return at once. Writes to the same article
+ * id coalesce while they wait, only the latest one is committed, and everything pending is
+ * handed to the {@link DownloadStore} in a single batch.
+ * <p>
+ * A batch the store fails to write is kept and merged with the writes that came in since,
+ * newer writes to the same id win. It is tried again after a delay doubling with every
+ * failure, up to {@link #MAX_RETRY_DELAY_MS}.
+ * <p>
+ * {@link #flush()} waits until everything handed over before the call is committed, or
+ * until a commit fails.
+ */
+class WriteBehindQueue extends Thread {
+
+    private static final String TAG = "WriteBehindQueue";
+
+    static final long INITIAL_RETRY_DELAY_MS = 100;
+    static final long MAX_RETRY_DELAY_MS = 30000;
+
+    private final Object mLock = new Object();
+
+    /**
+     * Writes waiting for the next batch, a null value deletes the request
+     */
+    private Map<String, DownloadInfo> mPending = new LinkedHashMap<>();
+
+    /**
+     * Batch being committed
+     */
+    private Map<String, DownloadInfo> mCommitting = new LinkedHashMap<>();
+
+    private long mSubmittedCount = 0;
+    private long mCommittedCount = 0;
+
+    /**
+     * Commits failed in a row, 0 after a successful one
+     */
+    private int mFailureCount = 0;
+
+    /**
+     * Value of {@link #mSubmittedCount} covered by the last failed commit
+     */
+    private long mFailedCount = 0;
+
+    private final DownloadStore mStore;
+
+    WriteBehindQueue(DownloadStore store) {
+        mStore = store;
+        setName(TAG);
+        setDaemon(true);
+    }
+
+    /**
+     * Queues the insert or update of a request.
+     */
+    void put(DownloadInfo request) {
+        submit(request.getArticleId(), request);
+    }
+
+    /**
+     * Queues the deletion of a request.
+     */
+    void delete(String articleId) {
+        submit(articleId, null);
+    }
+
+    private void submit(String articleId, DownloadInfo request) {
+        synchronized (mLock) {
+            // Re-inserted so the batch keeps the order of the latest writes.
+            mPending.remove(articleId);
+            mPending.put(articleId, request);
+            mSubmittedCount++;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the writes handed over and not committed yet by article id, a null value
+     * deletes the request.
+     */
+    Map<String, DownloadInfo> getUncommitted() {
+        synchronized (mLock) {
+            Map<String, DownloadInfo> writes = new HashMap<>(mCommitting);
+            writes.putAll(mPending);
+            return writes;
+        }
+    }
+
+    /**
+     * Blocks until every write handed over before this call is committed.
+     *
+     * @return false if the last commit of these writes failed, they are still pending and
+     * will be retried, or if the wait was interrupted
+     */
+    boolean flush() {
+        if (Thread.currentThread() == this) {
+            return false;
+        }
+        synchronized (mLock) {
+            long target = mSubmittedCount;
+            while (mCommittedCount < target) {
+                if (mFailureCount > 0 && mFailedCount >= target) {
+                    Log.d(TAG, "Flush failed, " + (target - mCommittedCount) + " writes pending");
+                    return false;
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Flush interrupted");
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            long batchCount;
+            synchronized (mLock) {
+                while (mPending.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "Interrupted while idle");
+                    }
+                }
+                Map<String, DownloadInfo> batch = mPending;
+                mPending = mCommitting;
+                mCommitting = batch;
+                batchCount = mSubmittedCount;
+            }
+            boolean committed = commit(mCommitting);
+            long retryDelayMs = 0;
+            synchronized (mLock) {
+                if (committed) {
+                    mCommittedCount = batchCount;
+                    mFailureCount = 0;
+                } else {
+                    keepFailedBatch();
+                    mFailedCount = batchCount;
+                    retryDelayMs = getRetryDelay(++mFailureCount);
+                }
+                mCommitting.clear();
+                mLock.notifyAll();
+            }
+            if (retryDelayMs > 0) {
+                waitToRetry(retryDelayMs);
+            }
+        }
+    }
+
+    private boolean commit(Map<String, DownloadInfo> batch) {
+        Log.d(TAG, "Committing " + batch.size() + " writes");
+        try {
+            mStore.write(batch);
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to commit " + batch.size() + " writes", e);
+            return false;
+        }
+    }
+
+    /**
+     * Puts the failed batch back in front of the pending writes, the writes made to the same
+     * ids while it was committed replace its own. Should be called holding {@link #mLock}.
+     */
+    private void keepFailedBatch() {
+        for (Map.Entry<String, DownloadInfo> write : mPending.entrySet()) {
+            mCommitting.remove(write.getKey());
+            mCommitting.put(write.getKey(), write.getValue());
+        }
+        Map<String, DownloadInfo> merged = mPending;
+        mPending = mCommitting;
+        mCommitting = merged;
+    }
+
+    /**
+     * Returns the delay before the next commit after the given number of failures in a row.
+     */
+    static long getRetryDelay(int failureCount) {
+        long delay = INITIAL_RETRY_DELAY_MS;
+        for (int i = 1; i < failureCount && delay < MAX_RETRY_DELAY_MS; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_RETRY_DELAY_MS);
+    }
+
+    private static void waitToRetry(long delayMs) {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while waiting to retry");
+        }
+    }
+}
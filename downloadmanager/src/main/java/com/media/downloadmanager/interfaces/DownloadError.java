@@ -7,4 +7,6 @@ public interface DownloadError {
     int FILE_ERROR = 104;
     int ERROR_TOO_MANY_REDIRECTS = 105;
     int UNKNOWN_SIZE = 106;
+    int TIMEOUT = 107;
+    int NETWORK_ERROR = 108;
 }
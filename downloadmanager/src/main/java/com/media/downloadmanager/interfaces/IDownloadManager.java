@@ -2,11 +2,17 @@ package com.media.downloadmanager.interfaces;
 
 
 import com.media.downloadmanager.model.DownloadRequest;
+import com.media.downloadmanager.model.HostStats;
+
+import java.util.Collection;
+import java.util.List;
 
 public interface IDownloadManager {
 
     int add(DownloadRequest request);
 
+    int addAll(Collection<DownloadRequest> requests);
+
     int pause(String id);
 
     void pauseAll();
@@ -15,5 +21,11 @@ public interface IDownloadManager {
 
     int cancel(String id);
 
+    void setMaxBandwidth(long bytesPerSecond);
+
+    void setMaxBandwidth(String id, long bytesPerSecond);
+
+    List<HostStats> getHostStats();
+
     void release();
 }
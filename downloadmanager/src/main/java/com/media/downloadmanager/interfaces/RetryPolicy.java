@@ -0,0 +1,54 @@
+package com.media.downloadmanager.interfaces;
+
+/**
+ * Decides if and when a failed download attempt is tried again. A policy is attached to a
+ * {@link com.media.downloadmanager.model.DownloadRequest} and counts the attempts of one
+ * run of that download, it is reset every time the download is picked up by a dispatcher.
+ */
+public interface RetryPolicy {
+
+    /**
+     * Connect or read timed out
+     */
+    int ERROR_TIMEOUT = 1;
+
+    /**
+     * Connection failed or dropped while reading
+     */
+    int ERROR_NETWORK = 2;
+
+    /**
+     * Server answered with a 5xx status
+     */
+    int ERROR_SERVER = 3;
+
+    /**
+     * Returns the connect and read timeout in milliseconds for the next attempt.
+     */
+    int getCurrentTimeout();
+
+    /**
+     * Returns how many times the download was retried so far.
+     */
+    int getCurrentRetryCount();
+
+    /**
+     * Records a failed attempt.
+     *
+     * @param errorClass one of the ERROR_ constants
+     * @return milliseconds to wait before the next attempt, or -1 if the download should fail
+     */
+    long retry(int errorClass);
+
+    /**
+     * Called before {@link #retry(int)} when the failed attempt downloaded some bytes. The
+     * failures before it are forgotten, a download that keeps moving forward on a flaky
+     * network is not failed for the number of times its connection dropped.
+     */
+    void onProgress();
+
+    /**
+     * Forgets the previous attempts.
+     */
+    void reset();
+}
@@ -0,0 +1,122 @@
+package com.media.downloadmanager.model;
+
+import com.media.downloadmanager.interfaces.RetryPolicy;
+
+/**
+ * Immutable in memory state of a download, the object moved between the queue, the
+ * dispatchers and the database layer.
+ * <p>
+ * Unlike {@link DownloadRequest} it isn't tied to Realm, it can be shared between threads
+ * and is never copied. Changes create a new instance with one of the {@code with} methods.
+ * The mapping to the persisted {@link DownloadRequest} lives in the database package.
+ */
+public final class DownloadInfo {
+
+    private final String mArticleId;
+    private final String mUrl;
+    private final boolean mDownloadOnWiFi;
+    private final String mDestinationPath;
+    private final long mTimeStamp;
+    private final int mPriority;
+    private final int mDownloadState;
+    private final long mDownloadedBytes;
+    private final long mTotalBytes;
+    private final int mProgress;
+
+    /**
+     * Not part of the state, shared by all the versions of the same download. Not persisted
+     * either, the downloads read back from the store have none.
+     */
+    private final RetryPolicy mRetryPolicy;
+
+    public DownloadInfo(String articleId, String url, boolean downloadOnWiFi,
+                        String destinationPath, long timeStamp, int priority, int downloadState,
+                        long downloadedBytes, long totalBytes, int progress,
+                        RetryPolicy retryPolicy) {
+        mArticleId = articleId;
+        mUrl = url;
+        mDownloadOnWiFi = downloadOnWiFi;
+        mDestinationPath = destinationPath;
+        mTimeStamp = timeStamp;
+        mPriority = priority;
+        mDownloadState = downloadState;
+        mDownloadedBytes = downloadedBytes;
+        mTotalBytes = totalBytes;
+        mProgress = progress;
+        mRetryPolicy = retryPolicy;
+    }
+
+    public String getArticleId() {
+        return mArticleId;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public boolean isDownloadOnWiFi() {
+        return mDownloadOnWiFi;
+    }
+
+    public String getDestinationPath() {
+        return mDestinationPath;
+    }
+
+    public long getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getDownloadState() {
+        return mDownloadState;
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public int getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Returns the retry policy of the download, null if the default one is used.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    public DownloadInfo withPriority(DownloadRequest.Priority priority) {
+        return new DownloadInfo(mArticleId, mUrl, mDownloadOnWiFi, mDestinationPath, mTimeStamp,
+                priority.getValue(), mDownloadState, mDownloadedBytes, mTotalBytes, mProgress,
+                mRetryPolicy);
+    }
+
+    public DownloadInfo withDownloadState(int downloadState) {
+        return new DownloadInfo(mArticleId, mUrl, mDownloadOnWiFi, mDestinationPath, mTimeStamp,
+                mPriority, downloadState, mDownloadedBytes, mTotalBytes, mProgress, mRetryPolicy);
+    }
+
+    public DownloadInfo withDownloadedBytes(long downloadedBytes) {
+        return new DownloadInfo(mArticleId, mUrl, mDownloadOnWiFi, mDestinationPath, mTimeStamp,
+                mPriority, mDownloadState, downloadedBytes, mTotalBytes, mProgress, mRetryPolicy);
+    }
+
+    public DownloadInfo withTotalBytes(long totalBytes) {
+        return new DownloadInfo(mArticleId, mUrl, mDownloadOnWiFi, mDestinationPath, mTimeStamp,
+                mPriority, mDownloadState, mDownloadedBytes, totalBytes, mProgress, mRetryPolicy);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadInfo{" + mArticleId + ", state " + mDownloadState + ", "
+                + mDownloadedBytes + "/" + mTotalBytes + "}";
+    }
+}
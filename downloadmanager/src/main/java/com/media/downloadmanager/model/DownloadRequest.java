@@ -3,7 +3,11 @@ package com.media.downloadmanager.model;
 
 import android.util.Log;
 
+import com.media.downloadmanager.interfaces.RetryPolicy;
+
 import io.realm.RealmObject;
+import io.realm.annotations.Ignore;
+import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
 public class DownloadRequest extends RealmObject implements Comparable<DownloadRequest> {
@@ -15,12 +19,32 @@ public class DownloadRequest extends RealmObject implements Comparable<DownloadR
     private int mProgress = 0;
 
     private String mDestinationPath;
+
+    /**
+     * Indexed for the queries of pending items, see {@link com.media.downloadmanager.interfaces.IDownloadState}
+     */
+    @Index
     private int mDownloadState;
     private long mDownloadedBytes;
     private long mTotalBytes;
+    @Index
     private long mTimeStamp;
     private int mPriority = Priority.NORMAL.getValue();
 
+    /**
+     * Not persisted, null uses the default policy. Only lives as long as the process, a
+     * download resumed after a restart uses the default policy.
+     */
+    @Ignore
+    private RetryPolicy mRetryPolicy;
+
+    /**
+     * Not persisted, rate cap in bytes per second, 0 for none. Only lives as long as the
+     * process, a download resumed after a restart runs uncapped.
+     */
+    @Ignore
+    private long mMaxBandwidth;
+
     public static final String ARTICLE_ID = "mArticleId";
     public static final String PROGRESS = "mProgress";
     public static final String DOWNLOAD_STATE = "mDownloadState";
@@ -55,6 +79,10 @@ public class DownloadRequest extends RealmObject implements Comparable<DownloadR
         return mProgress;
     }
 
+    public void setProgress(int progress) {
+        this.mProgress = progress;
+    }
+
     public String getDestinationPath() {
         return mDestinationPath;
     }
@@ -83,6 +111,10 @@ public class DownloadRequest extends RealmObject implements Comparable<DownloadR
         this.mDownloadState = downloadState;
     }
 
+    public long getTimeStamp() {
+        return mTimeStamp;
+    }
+
     public int getPriority() {
         return mPriority;
     }
@@ -107,6 +139,36 @@ public class DownloadRequest extends RealmObject implements Comparable<DownloadR
         this.mDestinationPath = mDestinationPath;
     }
 
+    /**
+     * Returns the retry policy set on this request, null if the default one is used.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Sets the retry policy of this request. It isn't saved with the request, it only applies
+     * until the process is restarted.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    public long getMaxBandwidth() {
+        return mMaxBandwidth;
+    }
+
+    /**
+     * Caps the download rate of this request, on top of the global limit. It can be changed
+     * later with {@link com.media.downloadmanager.DownloadManager#setMaxBandwidth(String, long)}.
+     * The cap isn't saved with the request, it has to be set again after a restart.
+     *
+     * @param bytesPerSecond rate cap, 0 for none
+     */
+    public void setMaxBandwidth(long bytesPerSecond) {
+        this.mMaxBandwidth = bytesPerSecond;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -125,6 +187,18 @@ public class DownloadRequest extends RealmObject implements Comparable<DownloadR
         public int getValue() {
             return value;
         }
+
+        /**
+         * Returns the priority with the given value, NORMAL if there is none.
+         */
+        public static Priority fromValue(int value) {
+            for (Priority priority : values()) {
+                if (priority.value == value) {
+                    return priority;
+                }
+            }
+            return NORMAL;
+        }
     }
 
     @Override
@@ -133,8 +207,21 @@ public class DownloadRequest extends RealmObject implements Comparable<DownloadR
         int right = other.getPriority();
 
         // High-priority requests are "lesser" so they are sorted to the front.
-        // Equal priorities are not sorted (otherwise provide the logic here)
-        return left == right ? 1 : right - left;
+        if (left != right) {
+            return right - left;
+        }
+        // Equal priorities keep the order the requests were created in.
+        long leftTime = this.getTimeStamp();
+        long rightTime = other.getTimeStamp();
+        if (leftTime != rightTime) {
+            return leftTime < rightTime ? -1 : 1;
+        }
+        String leftId = this.getArticleId();
+        String rightId = other.getArticleId();
+        if (leftId == null || rightId == null) {
+            return leftId == null ? (rightId == null ? 0 : -1) : 1;
+        }
+        return leftId.compareTo(rightId);
     }
 
     public String toString() {
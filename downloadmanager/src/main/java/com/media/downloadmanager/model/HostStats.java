@@ -0,0 +1,60 @@
+package com.media.downloadmanager.model;
+
+/**
+ * Snapshot of the downloads of one host, as returned by
+ * {@link com.media.downloadmanager.DownloadManager#getHostStats()}.
+ * <p>
+ * The throughput is the number of bytes downloaded from the host divided by the time at
+ * least one of its downloads was running, so the idle periods don't pull it down.
+ */
+public final class HostStats {
+
+    private final String mHost;
+    private final int mRunningDownloads;
+    private final int mQueuedDownloads;
+    private final long mDownloadedBytes;
+    private final long mActiveTimeMs;
+
+    public HostStats(String host, int runningDownloads, int queuedDownloads,
+                     long downloadedBytes, long activeTimeMs) {
+        mHost = host;
+        mRunningDownloads = runningDownloads;
+        mQueuedDownloads = queuedDownloads;
+        mDownloadedBytes = downloadedBytes;
+        mActiveTimeMs = activeTimeMs;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getRunningDownloads() {
+        return mRunningDownloads;
+    }
+
+    public int getQueuedDownloads() {
+        return mQueuedDownloads;
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public long getActiveTimeMs() {
+        return mActiveTimeMs;
+    }
+
+    /**
+     * Returns the average download rate from the host in bytes per second, 0 before it was
+     * measured.
+     */
+    public long getThroughput() {
+        return mActiveTimeMs > 0 ? mDownloadedBytes * 1000 / mActiveTimeMs : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "HostStats{" + mHost + ", running=" + mRunningDownloads + ", queued="
+                + mQueuedDownloads + ", " + getThroughput() + " B/s}";
+    }
+}
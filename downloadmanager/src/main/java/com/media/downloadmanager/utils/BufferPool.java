@@ -0,0 +1,135 @@
+package com.media.downloadmanager.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread safe pool of transfer buffers shared by all the dispatchers.
+ * <p>
+ * Buffers are grouped in power of two size classes from 4 KB to 1 MB, a request is served
+ * from the smallest class that fits it. Returned buffers are kept as long as the total
+ * pooled memory stays under the configured cap, otherwise they are left to the garbage
+ * collector. Requests bigger than the largest class are never pooled.
+ */
+public class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 20;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    private final long mMaxPooledBytes;
+    private final List<ArrayDeque<ByteBuffer>> mDirectBuffers = new ArrayList<>(CLASS_COUNT);
+    private final List<ArrayDeque<ByteBuffer>> mHeapBuffers = new ArrayList<>(CLASS_COUNT);
+
+    private long mPooledBytes;
+    private long mBorrowedBytes;
+    private long mHighWaterMark;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param maxPooledBytes maximum memory kept in the pool while the buffers are not in use
+     */
+    public BufferPool(long maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mDirectBuffers.add(new ArrayDeque<ByteBuffer>());
+            mHeapBuffers.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Borrows a buffer, it has to be given back with {@link #release(ByteBuffer)}.
+     *
+     * @param size   number of bytes needed, the buffer limit is set to it
+     * @param direct true for a direct buffer, false for one backed by an array
+     */
+    public ByteBuffer acquire(int size, boolean direct) {
+        int sizeClass = getSizeClass(size);
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if (sizeClass != -1) {
+                buffer = getBuffers(direct).get(sizeClass).pollFirst();
+            }
+            if (buffer != null) {
+                mHits++;
+                mPooledBytes -= buffer.capacity();
+            } else {
+                mMisses++;
+            }
+        }
+        if (buffer == null) {
+            int capacity = sizeClass == -1 ? size : 1 << (sizeClass + MIN_CLASS_SHIFT);
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        synchronized (this) {
+            mBorrowedBytes += buffer.capacity();
+            mHighWaterMark = Math.max(mHighWaterMark, mBorrowedBytes + mPooledBytes);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer obtained from {@link #acquire(int, boolean)}.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = getSizeClass(capacity);
+        synchronized (this) {
+            mBorrowedBytes -= capacity;
+            boolean exactClass = sizeClass != -1 && capacity == 1 << (sizeClass + MIN_CLASS_SHIFT);
+            if (exactClass && mPooledBytes + capacity <= mMaxPooledBytes) {
+                getBuffers(buffer.isDirect()).get(sizeClass).addFirst(buffer);
+                mPooledBytes += capacity;
+            }
+        }
+    }
+
+    /**
+     * Returns how many requests were served with a pooled buffer.
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns how many requests needed a new allocation.
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the most memory that was held by the pool and its borrowers at the same time.
+     */
+    public synchronized long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Returns the memory currently kept in the pool.
+     */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    private List<ArrayDeque<ByteBuffer>> getBuffers(boolean direct) {
+        return direct ? mDirectBuffers : mHeapBuffers;
+    }
+
+    /**
+     * Returns the index of the smallest class holding the given size, -1 if none does.
+     */
+    private static int getSizeClass(int size) {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            if (size <= 1 << (i + MIN_CLASS_SHIFT)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
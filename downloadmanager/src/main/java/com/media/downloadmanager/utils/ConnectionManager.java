@@ -0,0 +1,169 @@
+package com.media.downloadmanager.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens and releases every http connection of the download manager.
+ * <p>
+ * The sockets themselves are pooled by the platform HttpURLConnection, which keeps a
+ * connection alive for the next request to the same host once its response body was read
+ * to the end and the stream closed without calling {@link HttpURLConnection#disconnect()}.
+ * This class only disconnects connections that can't be reused and limits the number of
+ * connections open to the same host at once.
+ * <p>
+ * The platform pool is configured through system properties, which apply to every
+ * HttpURLConnection of the process and are only read once by the platform. They are only
+ * set if the application didn't set them itself, and never after the first connection was
+ * opened here.
+ */
+public class ConnectionManager {
+
+    private static final String TAG = ConnectionManager.class.getName();
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+    /**
+     * Longest wait for a connection permit before checking again if the caller gave up
+     */
+    private static final long PERMIT_WAIT_SLICE_MS = 250;
+
+    private static ConnectionManager sInstance;
+
+    private int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private volatile boolean mConnectionOpened = false;
+
+    /**
+     * Tells a caller waiting for a connection that it should give up
+     */
+    public interface StopSignal {
+        boolean isStopRequested();
+    }
+
+    /**
+     * Permits for the connections of every host
+     */
+    private final Map<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+
+    /**
+     * Host of every connection currently open, to release its permit only once
+     */
+    private final Map<HttpURLConnection, String> mOpenConnections = new ConcurrentHashMap<>();
+
+    private ConnectionManager() {
+        configure(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_DURATION_MS);
+    }
+
+    public static synchronized ConnectionManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new ConnectionManager();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Configures the limits, should be called before the first connection is opened. The
+     * limit of a host that was already connected to is not changed.
+     *
+     * @param maxConnectionsPerHost connections that can be open to the same host at once
+     * @param keepAliveDurationMs   time an idle connection is kept for reuse before it is
+     *                              evicted, process wide and only applied before the first
+     *                              connection if the application didn't set it
+     */
+    public synchronized void configure(int maxConnectionsPerHost, long keepAliveDurationMs) {
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        if (mConnectionOpened) {
+            Log.d(TAG, "Connections already opened, keep-alive settings left unchanged");
+            return;
+        }
+        setDefaultProperty("http.keepAlive", "true");
+        setDefaultProperty("http.keepAliveDuration", String.valueOf(keepAliveDurationMs));
+    }
+
+    private static void setDefaultProperty(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    /**
+     * Opens a connection, waiting while the host already has the maximum number of
+     * connections open. Every connection opened here must be given back with
+     * {@link #release(HttpURLConnection, boolean)}.
+     *
+     * @throws InterruptedIOException if interrupted while waiting for the host
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        return open(url, null);
+    }
+
+    /**
+     * Opens a connection like {@link #open(URL)}, giving up the wait for the host once the
+     * caller is asked to stop.
+     *
+     * @param stopSignal checked while waiting, null to only stop on an interrupt
+     * @throws InterruptedIOException if interrupted or stopped while waiting for the host
+     */
+    public HttpURLConnection open(URL url, StopSignal stopSignal) throws IOException {
+        String host = url.getHost();
+        Semaphore permits = getPermits(host);
+        try {
+            while (!permits.tryAcquire(PERMIT_WAIT_SLICE_MS, TimeUnit.MILLISECONDS)) {
+                if (stopSignal != null && stopSignal.isStopRequested()) {
+                    throw new InterruptedIOException("Stopped waiting for a connection to " + host);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + host);
+        }
+        mConnectionOpened = true;
+        try {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            mOpenConnections.put(conn, host);
+            return conn;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a connection opened with {@link #open(URL)}. Releasing it more than once
+     * has no effect.
+     *
+     * @param reusable true if the response body was read to the end and the connection can
+     *                 go back to the keep-alive pool, false to close its socket
+     */
+    public void release(HttpURLConnection conn, boolean reusable) {
+        if (conn == null) {
+            return;
+        }
+        String host = mOpenConnections.remove(conn);
+        if (!reusable) {
+            conn.disconnect();
+        }
+        if (host != null) {
+            getPermits(host).release();
+        } else {
+            Log.d(TAG, "Connection released twice or not opened here");
+        }
+    }
+
+    private synchronized Semaphore getPermits(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(mMaxConnectionsPerHost, true);
+            mHostPermits.put(host, permits);
+        }
+        return permits;
+    }
+}
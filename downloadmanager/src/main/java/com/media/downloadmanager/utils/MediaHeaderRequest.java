@@ -29,16 +29,25 @@ public class MediaHeaderRequest extends AsyncTask<String, Void, String> {
     @Override
     protected String doInBackground(String... params) {
         URL url = null;
+        HttpURLConnection conn = null;
+        boolean reusable = false;
         try {
             url = new URL(params[0]);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn = ConnectionManager.getInstance().open(url);
+            // Only the headers are needed, without a body the connection stays reusable.
+            conn.setRequestMethod("HEAD");
+            // Read the response here, getHeaderField() hides the errors by returning null.
+            conn.getResponseCode();
             String contentLength = conn.getHeaderField("Content-Length");
-            conn.disconnect();
+            reusable = true;
             return contentLength;
         } catch (MalformedURLException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            // A connection that failed is closed rather than handed back to the pool.
+            ConnectionManager.getInstance().release(conn, reusable);
         }
         return null;
     }
@@ -17,6 +17,7 @@ public class NetworkChangeReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         DownloadManager.setIsConnectedtoWifi(isConnectedToWifi(context));
+        DownloadManager.getInstance(context).onNetworkChanged();
         if (isOnline(context)) {
             Log.d(TAG, "is online");
             context.startService(new Intent(context, DownloadService.class));
@@ -0,0 +1,104 @@
+package com.media.downloadmanager.utils;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the final url a download url was redirected to, so that retries and resumes of
+ * the same download connect straight to it instead of following the redirects again.
+ * <p>
+ * Entries expire after the configured time, short lived urls signed by a CDN would otherwise
+ * be used after they stopped working. The least recently used entries are dropped once the
+ * cache is full.
+ */
+public class RedirectCache {
+
+    private static final String TAG = RedirectCache.class.getName();
+
+    public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    private static final int MAX_ENTRIES = 64;
+
+    private static RedirectCache sInstance;
+
+    private long mTtlMs = DEFAULT_TTL_MS;
+
+    private final Map<String, ResolvedUrl> mEntries = new LinkedHashMap<String, ResolvedUrl>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolvedUrl> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private RedirectCache() {
+    }
+
+    public static synchronized RedirectCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new RedirectCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param ttlMs time a resolved url is used for, 0 disables the cache
+     */
+    public synchronized void configure(long ttlMs) {
+        mTtlMs = ttlMs;
+        if (ttlMs == 0) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Returns the url the given one was last redirected to, null if unknown or expired.
+     */
+    public synchronized String get(String url) {
+        ResolvedUrl entry = mEntries.get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (now() >= entry.mExpiresAtMs) {
+            mEntries.remove(url);
+            return null;
+        }
+        return entry.mResolvedUrl;
+    }
+
+    /**
+     * Records the final url of a download url.
+     */
+    public synchronized void put(String url, String resolvedUrl) {
+        if (mTtlMs == 0) {
+            return;
+        }
+        if (url.equals(resolvedUrl)) {
+            mEntries.remove(url);
+            return;
+        }
+        Log.d(TAG, "Caching " + url + " -> " + resolvedUrl);
+        mEntries.put(url, new ResolvedUrl(resolvedUrl, now() + mTtlMs));
+    }
+
+    /**
+     * Forgets the final url of a download url, when it stopped working.
+     */
+    public synchronized void remove(String url) {
+        mEntries.remove(url);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static class ResolvedUrl {
+        final String mResolvedUrl;
+        final long mExpiresAtMs;
+
+        ResolvedUrl(String resolvedUrl, long expiresAtMs) {
+            mResolvedUrl = resolvedUrl;
+            mExpiresAtMs = expiresAtMs;
+        }
+    }
+}
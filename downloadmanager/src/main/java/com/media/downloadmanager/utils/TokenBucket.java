@@ -0,0 +1,72 @@
+package com.media.downloadmanager.utils;
+
+/**
+ * Thread safe token bucket limiting a byte rate.
+ * <p>
+ * The bucket fills at the configured rate up to one second worth of bytes. Transfers take
+ * their bytes after the fact and may leave the bucket in debt, they are then told how long
+ * to wait before going on, so a caller pacing in large chunks only touches the bucket once
+ * per chunk. An unlimited bucket is checked with a single volatile read.
+ */
+public class TokenBucket {
+
+    public static final long UNLIMITED = 0;
+
+    private volatile long mRate;
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    /**
+     * @param bytesPerSecond rate limit, {@link #UNLIMITED} for none
+     */
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the rate, the bytes already taken keep their debt.
+     *
+     * @param bytesPerSecond rate limit, {@link #UNLIMITED} for none
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate can't be negative");
+        }
+        refill();
+        mRate = bytesPerSecond;
+        mTokens = Math.min(mTokens, bytesPerSecond);
+    }
+
+    public long getRate() {
+        return mRate;
+    }
+
+    /**
+     * Takes bytes out of the bucket.
+     *
+     * @param bytes number of bytes transferred
+     * @return time in milliseconds to wait before transferring more, 0 if none
+     */
+    public long reserve(long bytes) {
+        if (mRate == UNLIMITED) {
+            return 0;
+        }
+        synchronized (this) {
+            long rate = mRate;
+            if (rate == UNLIMITED) {
+                return 0;
+            }
+            refill();
+            mTokens -= bytes;
+            return mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000 / rate);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (mLastRefillNanos != 0 && mRate != UNLIMITED) {
+            mTokens = Math.min(mRate, mTokens + (now - mLastRefillNanos) * mRate / 1e9);
+        }
+        mLastRefillNanos = now;
+    }
+}
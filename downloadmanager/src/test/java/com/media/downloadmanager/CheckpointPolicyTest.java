@@ -0,0 +1,44 @@
+package com.media.downloadmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointPolicyTest {
+
+    @Test
+    public void dueOnceEnoughBytesWereWritten() {
+        CheckpointPolicy policy = new CheckpointPolicy(1000, 0);
+        policy.reset(500);
+        assertFalse(policy.shouldCheckpoint(1499));
+        assertTrue(policy.shouldCheckpoint(1500));
+        policy.onCheckpoint(1500);
+        assertFalse(policy.shouldCheckpoint(2000));
+    }
+
+    @Test
+    public void dueOnceTheIntervalWentBy() throws InterruptedException {
+        CheckpointPolicy policy = new CheckpointPolicy(0, 50);
+        policy.reset(0);
+        assertFalse(policy.shouldCheckpoint(10));
+        Thread.sleep(80);
+        assertTrue(policy.shouldCheckpoint(10));
+    }
+
+    @Test
+    public void neverDueWithoutNewBytes() throws InterruptedException {
+        CheckpointPolicy policy = new CheckpointPolicy(1, 1);
+        policy.reset(100);
+        Thread.sleep(10);
+        assertFalse(policy.shouldCheckpoint(100));
+    }
+
+    @Test
+    public void zeroThresholdsDisableCheckpoints() throws InterruptedException {
+        CheckpointPolicy policy = new CheckpointPolicy(0, 0);
+        policy.reset(0);
+        Thread.sleep(10);
+        assertFalse(policy.shouldCheckpoint(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,42 @@
+package com.media.downloadmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyControllerTest {
+
+    private static ConcurrencyController controller(boolean adaptive) {
+        DownloadConfiguration.Builder builder = new DownloadConfiguration.Builder();
+        if (adaptive) {
+            builder.setAdaptiveConcurrency(1, 4);
+        }
+        return new ConcurrencyController(null, new BandwidthLimiter(0), builder.build());
+    }
+
+    @Test
+    public void samplingStopsAndStartsAgain() throws InterruptedException {
+        ConcurrencyController controller = controller(true);
+        controller.startSampling();
+        assertTrue(controller.isSampling());
+
+        controller.stopSampling();
+        assertTrue(controller.awaitSamplingStopped(1000));
+        assertFalse(controller.isSampling());
+
+        controller.startSampling();
+        assertTrue(controller.isSampling());
+        controller.stopSampling();
+        assertTrue(controller.awaitSamplingStopped(1000));
+    }
+
+    @Test
+    public void fixedConcurrencyNeverSamples() throws InterruptedException {
+        ConcurrencyController controller = controller(false);
+        controller.startSampling();
+        assertFalse(controller.isSampling());
+        controller.stopSampling();
+        assertTrue(controller.awaitSamplingStopped(1000));
+    }
+}
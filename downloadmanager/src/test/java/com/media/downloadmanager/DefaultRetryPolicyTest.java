@@ -0,0 +1,78 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.interfaces.RetryPolicy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultRetryPolicyTest {
+
+    private static DefaultRetryPolicy newPolicy() {
+        return new DefaultRetryPolicy(1000, 2f, 2, 3, 1, 100, 1000);
+    }
+
+    @Test
+    public void givesUpAfterTheAttemptsOfTheErrorClass() {
+        DefaultRetryPolicy policy = newPolicy();
+        assertTrue(policy.retry(RetryPolicy.ERROR_SERVER) >= 0);
+        assertEquals(-1, policy.retry(RetryPolicy.ERROR_SERVER));
+    }
+
+    @Test
+    public void errorClassesAreCountedSeparately() {
+        DefaultRetryPolicy policy = newPolicy();
+        assertTrue(policy.retry(RetryPolicy.ERROR_SERVER) >= 0);
+        assertTrue(policy.retry(RetryPolicy.ERROR_NETWORK) >= 0);
+        assertTrue(policy.retry(RetryPolicy.ERROR_TIMEOUT) >= 0);
+        assertEquals(3, policy.getCurrentRetryCount());
+    }
+
+    @Test
+    public void timeoutGrowsAfterEveryTimeout() {
+        DefaultRetryPolicy policy = newPolicy();
+        policy.retry(RetryPolicy.ERROR_TIMEOUT);
+        assertEquals(2000, policy.getCurrentTimeout());
+        policy.retry(RetryPolicy.ERROR_NETWORK);
+        assertEquals(2000, policy.getCurrentTimeout());
+        policy.retry(RetryPolicy.ERROR_TIMEOUT);
+        assertEquals(4000, policy.getCurrentTimeout());
+    }
+
+    @Test
+    public void backoffDoublesWithJitterUpToTheMaximum() {
+        DefaultRetryPolicy policy = new DefaultRetryPolicy(1000, 1f, 10, 10, 10, 100, 1000);
+        long[] expectedMax = {100, 200, 400, 800, 1000, 1000};
+        for (long max : expectedMax) {
+            long delay = policy.retry(RetryPolicy.ERROR_NETWORK);
+            assertTrue("delay " + delay + " above " + max, delay <= max);
+            assertTrue("delay " + delay + " below " + max / 2, delay >= max / 2);
+        }
+    }
+
+    @Test
+    public void progressClearsTheAttemptsButKeepsTheTimeout() {
+        DefaultRetryPolicy policy = newPolicy();
+        policy.retry(RetryPolicy.ERROR_TIMEOUT);
+        policy.retry(RetryPolicy.ERROR_TIMEOUT);
+        policy.onProgress();
+        assertEquals(0, policy.getCurrentRetryCount());
+        assertEquals(4000, policy.getCurrentTimeout());
+        assertTrue(policy.retry(RetryPolicy.ERROR_TIMEOUT) >= 0);
+    }
+
+    @Test
+    public void resetRestoresTheInitialTimeout() {
+        DefaultRetryPolicy policy = newPolicy();
+        policy.retry(RetryPolicy.ERROR_TIMEOUT);
+        policy.reset();
+        assertEquals(1000, policy.getCurrentTimeout());
+        assertEquals(0, policy.getCurrentRetryCount());
+    }
+
+    @Test
+    public void unknownErrorClassIsNotRetried() {
+        assertEquals(-1, newPolicy().retry(42));
+    }
+}
@@ -0,0 +1,44 @@
+package com.media.downloadmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadConfigurationTest {
+
+    @Test
+    public void defaultBufferPoolHoldsOneBufferPerDispatcher() {
+        DownloadConfiguration configuration = DownloadConfiguration.getDefault();
+        assertEquals(DownloadConfiguration.DEFAULT_BUFFER_SIZE, configuration.getBufferPoolSize());
+    }
+
+    @Test
+    public void bufferPoolIsSizedFromTheWorkingSet() {
+        DownloadConfiguration configuration = new DownloadConfiguration.Builder()
+                .setThreadPoolSize(3)
+                .setSegmentCount(8)
+                .setBufferSize(1024 * 1024)
+                .build();
+        assertEquals(3L * 8 * 1024 * 1024, configuration.getBufferPoolSize());
+    }
+
+    @Test
+    public void pipelinedTransfersCountEveryBufferInFlight() {
+        DownloadConfiguration configuration = new DownloadConfiguration.Builder()
+                .setTransferEngine(DownloadConfiguration.TRANSFER_ENGINE_PIPELINED)
+                .setPipelineDepth(4)
+                .setBufferSize(100 * 1024)
+                .build();
+        // The ring, the buffer being read and the one being written, from the 128 KB class.
+        assertEquals(6L * 128 * 1024, configuration.getBufferPoolSize());
+    }
+
+    @Test
+    public void explicitBufferPoolSizeIsKept() {
+        DownloadConfiguration configuration = new DownloadConfiguration.Builder()
+                .setThreadPoolSize(4)
+                .setBufferPoolSize(0)
+                .build();
+        assertEquals(0, configuration.getBufferPoolSize());
+    }
+}
@@ -0,0 +1,234 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.model.DownloadInfo;
+import com.media.downloadmanager.model.DownloadRequest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedDownloadQueueTest {
+
+    private static DownloadInfo request(String id, String host, DownloadRequest.Priority priority) {
+        return new DownloadInfo(id, "http://" + host + "/" + id, false, "/tmp/" + id, 0,
+                priority.getValue(), 0, 0, 0, 0, null);
+    }
+
+    private static DownloadInfo request(String id, DownloadRequest.Priority priority) {
+        return request(id, "example.com", priority);
+    }
+
+    private static String take(IndexedDownloadQueue queue) throws InterruptedException {
+        return queue.take().getArticleId();
+    }
+
+    @Test
+    public void takesHigherPrioritiesFirstAndFifoWithinAPriority() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("low", DownloadRequest.Priority.LOW));
+        queue.add(request("normal1", DownloadRequest.Priority.NORMAL));
+        queue.add(request("high", DownloadRequest.Priority.HIGH));
+        queue.add(request("normal2", DownloadRequest.Priority.NORMAL));
+
+        assertEquals("high", take(queue));
+        assertEquals("normal1", take(queue));
+        assertEquals("normal2", take(queue));
+        assertEquals("low", take(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void ignoresDuplicateIds() {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, IndexedDownloadQueue.NO_HOST_LIMIT);
+        assertTrue(queue.add(request("a", DownloadRequest.Priority.NORMAL)));
+        assertFalse(queue.add(request("a", DownloadRequest.Priority.HIGH)));
+        assertEquals(1, queue.size());
+        assertEquals(DownloadRequest.Priority.NORMAL.getValue(), queue.get("a").getPriority());
+    }
+
+    @Test
+    public void updatedPriorityKeepsTheOrderOfAddition() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("normal1", DownloadRequest.Priority.NORMAL));
+        queue.add(request("normal2", DownloadRequest.Priority.NORMAL));
+        queue.add(request("high", DownloadRequest.Priority.HIGH));
+        assertTrue(queue.updatePriority("normal2", DownloadRequest.Priority.HIGH));
+        assertFalse(queue.updatePriority("missing", DownloadRequest.Priority.HIGH));
+
+        assertEquals("normal2", take(queue));
+        assertEquals("high", take(queue));
+        assertEquals("normal1", take(queue));
+    }
+
+    @Test
+    public void removeDropsTheRequest() {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("a", DownloadRequest.Priority.HIGH));
+        queue.add(request("b", DownloadRequest.Priority.NORMAL));
+        assertEquals("a", queue.remove("a").getArticleId());
+        assertNull(queue.remove("a"));
+        assertFalse(queue.contains("a"));
+        assertEquals("b", queue.peek().getArticleId());
+    }
+
+    @Test
+    public void agedRequestGetsAheadOfNewerHigherPriorities() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(100, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("low", DownloadRequest.Priority.LOW));
+        Thread.sleep(250);
+        queue.add(request("normal", DownloadRequest.Priority.NORMAL));
+
+        assertEquals("low", take(queue));
+        assertEquals("normal", take(queue));
+    }
+
+    @Test
+    public void agingKeepsThePriorityOrderWithinOneInterval() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(60000, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("low", DownloadRequest.Priority.LOW));
+        queue.add(request("normal", DownloadRequest.Priority.NORMAL));
+        queue.add(request("high", DownloadRequest.Priority.HIGH));
+
+        assertEquals("high", take(queue));
+        assertEquals("normal", take(queue));
+        assertEquals("low", take(queue));
+    }
+
+    @Test
+    public void immediateRequestsIgnoreAging() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(10, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("low", DownloadRequest.Priority.LOW));
+        Thread.sleep(100);
+        queue.add(request("immediate", DownloadRequest.Priority.IMMEDIATE));
+
+        assertEquals("immediate", take(queue));
+        assertEquals("low", take(queue));
+    }
+
+    @Test
+    public void hostsTakeTurnsWithinAPriority() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("a1", "a.com", DownloadRequest.Priority.NORMAL));
+        queue.add(request("a2", "a.com", DownloadRequest.Priority.NORMAL));
+        queue.add(request("a3", "a.com", DownloadRequest.Priority.NORMAL));
+        queue.add(request("b1", "b.com", DownloadRequest.Priority.NORMAL));
+        queue.add(request("b2", "b.com", DownloadRequest.Priority.NORMAL));
+
+        assertEquals("a1", take(queue));
+        assertEquals("b1", take(queue));
+        assertEquals("a2", take(queue));
+        assertEquals("b2", take(queue));
+        assertEquals("a3", take(queue));
+    }
+
+    @Test
+    public void rotationDoesNotOverridePriorities() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("a1", "a.com", DownloadRequest.Priority.HIGH));
+        queue.add(request("a2", "a.com", DownloadRequest.Priority.HIGH));
+        queue.add(request("b1", "b.com", DownloadRequest.Priority.NORMAL));
+
+        assertEquals("a1", take(queue));
+        assertEquals("a2", take(queue));
+        assertEquals("b1", take(queue));
+    }
+
+    @Test
+    public void hostAtItsLimitWaitsForAFinishedDownload() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, 1);
+        queue.add(request("a1", "a.com", DownloadRequest.Priority.HIGH));
+        queue.add(request("a2", "a.com", DownloadRequest.Priority.HIGH));
+        queue.add(request("b1", "b.com", DownloadRequest.Priority.LOW));
+
+        assertEquals("a1", take(queue));
+        assertEquals("b1", take(queue));
+        assertNull(queue.peek());
+        assertEquals(1, queue.size());
+
+        queue.finished("a.com");
+        assertEquals("a2", queue.peek().getArticleId());
+    }
+
+    @Test
+    public void takeWaitsForAFreeSlot() throws InterruptedException {
+        final IndexedDownloadQueue queue = new IndexedDownloadQueue(0, 1);
+        queue.add(request("a1", "a.com", DownloadRequest.Priority.NORMAL));
+        queue.add(request("a2", "a.com", DownloadRequest.Priority.NORMAL));
+        take(queue);
+
+        final String[] taken = new String[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = take(queue);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        thread.start();
+        thread.join(100);
+        assertTrue(thread.isAlive());
+
+        queue.finished("a.com");
+        thread.join(1000);
+        assertEquals("a2", taken[0]);
+    }
+
+    @Test
+    public void saturatedHostOnlyFreesUpWithItsOwnDownloads() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, 1);
+        queue.add(request("a1", "a.com", DownloadRequest.Priority.LOW));
+        assertEquals("a1", take(queue));
+        // a.com is saturated, b.com has nothing running.
+        queue.add(request("a2", "a.com", DownloadRequest.Priority.HIGH));
+
+        assertFalse(queue.hasFreeSlot("a.com"));
+        assertTrue(queue.hasFreeSlot("b.com"));
+        assertNull(queue.peek());
+        assertNull(queue.peekAfterFinished("b.com"));
+        assertEquals("a2", queue.peekAfterFinished("a.com").getArticleId());
+
+        queue.add(request("b1", "b.com", DownloadRequest.Priority.NORMAL));
+        assertEquals("b1", queue.peek().getArticleId());
+        assertEquals("a2", queue.peekAfterFinished("a.com").getArticleId());
+        assertEquals("b1", queue.peekAfterFinished("b.com").getArticleId());
+    }
+
+    @Test
+    public void requeuedRequestKeepsItsPlace() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(0, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("first", DownloadRequest.Priority.NORMAL));
+        IndexedDownloadQueue.Taken taken = queue.takeEntry();
+        queue.add(request("second", DownloadRequest.Priority.NORMAL));
+        queue.add(request("third", DownloadRequest.Priority.NORMAL));
+
+        assertTrue(queue.requeue(taken.mRequest, taken.mSequence, taken.mAddedAtMs));
+        assertFalse(queue.requeue(taken.mRequest, taken.mSequence, taken.mAddedAtMs));
+        assertEquals("first", take(queue));
+        assertEquals("second", take(queue));
+    }
+
+    @Test
+    public void requeuedRequestKeepsItsAgingHeadStart() throws InterruptedException {
+        IndexedDownloadQueue queue = new IndexedDownloadQueue(20, IndexedDownloadQueue.NO_HOST_LIMIT);
+        queue.add(request("low", DownloadRequest.Priority.LOW));
+        IndexedDownloadQueue.Taken taken = queue.takeEntry();
+        Thread.sleep(60);
+        queue.add(request("normal", DownloadRequest.Priority.NORMAL));
+
+        // Added again now, the low request would come after the normal one.
+        queue.requeue(taken.mRequest, taken.mSequence, taken.mAddedAtMs);
+        assertEquals("low", take(queue));
+        assertEquals("normal", take(queue));
+    }
+
+    @Test
+    public void hostOfIgnoresCaseAndBadUrls() {
+        assertEquals("cdn.example.com", IndexedDownloadQueue.hostOf("https://CDN.Example.com/a.mp4"));
+        assertEquals("", IndexedDownloadQueue.hostOf("not a url"));
+    }
+}
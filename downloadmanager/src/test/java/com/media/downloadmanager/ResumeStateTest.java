@@ -0,0 +1,50 @@
+package com.media.downloadmanager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResumeStateTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void rangeMustStartAtTheOffset() {
+        assertTrue(ResumeState.isRangeFrom("bytes 500-999/1000", 500, 1000));
+        assertTrue(ResumeState.isRangeFrom("Bytes 500-999/*", 500, 1000));
+        assertTrue(ResumeState.isRangeFrom("bytes 500-999/1000", 500, 0));
+        assertFalse(ResumeState.isRangeFrom("bytes 0-999/1000", 500, 1000));
+        assertFalse(ResumeState.isRangeFrom("bytes 500-1199/1200", 500, 1000));
+    }
+
+    @Test
+    public void missingOrBadRangeIsRejected() {
+        assertFalse(ResumeState.isRangeFrom(null, 500, 1000));
+        assertFalse(ResumeState.isRangeFrom("items 500-999/1000", 500, 1000));
+        assertFalse(ResumeState.isRangeFrom("bytes */1000", 500, 1000));
+        assertFalse(ResumeState.isRangeFrom("bytes x-999/1000", 500, 1000));
+    }
+
+    @Test
+    public void validatorIsSavedNextToTheDestination() {
+        String destination = new File(mFolder.getRoot(), "video.mp4").getPath();
+        assertEquals("", ResumeState.load(destination));
+
+        ResumeState.save(destination, "\"abc\"");
+        assertEquals("\"abc\"", ResumeState.load(destination));
+
+        ResumeState.save(destination, "");
+        assertEquals("", ResumeState.load(destination));
+
+        ResumeState.save(destination, "Tue, 15 Nov 1994 12:45:26 GMT");
+        ResumeState.delete(destination);
+        assertEquals("", ResumeState.load(destination));
+    }
+}
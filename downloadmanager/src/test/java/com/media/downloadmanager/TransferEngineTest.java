@@ -0,0 +1,95 @@
+package com.media.downloadmanager;
+
+import com.media.downloadmanager.utils.BufferPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransferEngineTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final int[] ENGINES = {
+            DownloadConfiguration.TRANSFER_ENGINE_STREAM,
+            DownloadConfiguration.TRANSFER_ENGINE_NIO,
+            DownloadConfiguration.TRANSFER_ENGINE_PIPELINED,
+    };
+
+    /**
+     * Serves some bytes and then fails its reads with the given error
+     */
+    private static InputStream failingAfter(final int bytes, final IOException error) {
+        return new InputStream() {
+            private int mRead = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (mRead >= bytes) {
+                    throw error;
+                }
+                mRead++;
+                return 'x';
+            }
+        };
+    }
+
+    private int transfer(int engine, InputStream in) throws IOException {
+        DownloadConfiguration configuration = new DownloadConfiguration.Builder()
+                .setTransferEngine(engine)
+                .build();
+        File file = mFolder.newFile();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            return TransferEngine.create(configuration, new BufferPool(0)).transfer(in, channel, 0,
+                    TransferEngine.NO_LIMIT, new TransferEngine.Callback() {
+                        @Override
+                        public boolean isStopRequested() {
+                            return false;
+                        }
+
+                        @Override
+                        public void onBytesWritten(long position) {
+                        }
+                    });
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void readTimeoutIsReportedAsTimeout() throws IOException {
+        for (int engine : ENGINES) {
+            assertEquals("engine " + engine, TransferEngine.RESULT_TIMEOUT,
+                    transfer(engine, failingAfter(10, new SocketTimeoutException("Read timed out"))));
+        }
+    }
+
+    @Test
+    public void connectionResetIsReportedAsReadError() throws IOException {
+        for (int engine : ENGINES) {
+            assertEquals("engine " + engine, TransferEngine.RESULT_READ_ERROR,
+                    transfer(engine, failingAfter(10, new IOException("Connection reset"))));
+        }
+    }
+
+    @Test
+    public void wholeStreamIsCopied() throws IOException {
+        for (int engine : ENGINES) {
+            assertEquals("engine " + engine, TransferEngine.RESULT_END_OF_STREAM,
+                    transfer(engine, new ByteArrayInputStream(new byte[200 * 1024])));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DbManagerTest {
+
+    /**
+     * Holds the commits back until it is opened, so the writes stay uncommitted
+     */
+    private static class GatedStore extends MemoryDownloadStore {
+        private boolean mOpen = false;
+
+        @Override
+        public void write(Map<String, DownloadInfo> batch) {
+            synchronized (this) {
+                while (!mOpen) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            super.write(batch);
+        }
+
+        synchronized void open() {
+            mOpen = true;
+            notifyAll();
+        }
+
+        /**
+         * Saves the downloads as if they had been written before the test.
+         */
+        void preload(DownloadInfo... infos) {
+            for (DownloadInfo info : infos) {
+                Map<String, DownloadInfo> batch = new HashMap<>();
+                batch.put(info.getArticleId(), info);
+                super.write(batch);
+            }
+        }
+    }
+
+    private GatedStore mStore;
+    private DbManager mDbManager;
+
+    private static DownloadInfo info(String id, long timeStamp, int progress) {
+        return new DownloadInfo(id, "http://example.com/" + id, false, "/sdcard/" + id,
+                timeStamp, 102, 0, progress, 100, progress, null);
+    }
+
+    @Before
+    public void setUp() {
+        mStore = new GatedStore();
+        for (int i = 1; i <= 250; i++) {
+            mStore.preload(info("id" + i, i, 0));
+        }
+        mDbManager = new DbManager(mStore);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.open();
+    }
+
+    private static List<String> ids(List<DownloadInfo> infos) {
+        List<String> ids = new ArrayList<>();
+        for (DownloadInfo info : infos) {
+            ids.add(info.getArticleId());
+        }
+        return ids;
+    }
+
+    private List<String> iterateIds() {
+        List<String> ids = new ArrayList<>();
+        Iterator<DownloadInfo> iterator = mDbManager.iterateDownloads();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getArticleId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void pagesFollowEachOtherNewestFirst() {
+        List<DownloadInfo> first = mDbManager.getDownloadsAfter(null, 3);
+        assertEquals("[id250, id249, id248]", ids(first).toString());
+        List<DownloadInfo> second = mDbManager.getDownloadsAfter(first.get(2), 3);
+        assertEquals("[id247, id246, id245]", ids(second).toString());
+    }
+
+    @Test
+    public void pagesSeeTheUncommittedWrites() {
+        mDbManager.put(info("new", 1000, 0));
+        mDbManager.delete("id249");
+        mDbManager.put(info("id248", 248, 50));
+
+        List<DownloadInfo> page = mDbManager.getDownloadsAfter(null, 3);
+        assertEquals("[new, id250, id248]", ids(page).toString());
+        assertEquals(50, page.get(2).getProgress());
+        assertEquals("[id247]", ids(mDbManager.getDownloadsAfter(page.get(2), 1)).toString());
+    }
+
+    @Test
+    public void iterationReadsEveryPage() {
+        mDbManager.delete("id1");
+        mDbManager.put(info("old", 0, 0));
+
+        List<String> ids = iterateIds();
+        assertEquals(250, ids.size());
+        assertEquals("id250", ids.get(0));
+        assertEquals("id2", ids.get(248));
+        assertEquals("old", ids.get(249));
+    }
+
+    @Test
+    public void offsetPageSeesTheUncommittedWrites() {
+        // The store holds the commits back, a page waiting for them would never return.
+        mDbManager.put(info("new", 1000, 0));
+        mDbManager.delete("id249");
+        assertEquals("[new, id250]", ids(mDbManager.getDownloads(0, 2)).toString());
+        assertEquals("[id247, id246]", ids(mDbManager.getDownloads(3, 2)).toString());
+        assertEquals("[]", ids(mDbManager.getDownloads(300, 2)).toString());
+        assertTrue(mStore.get("new") == null);
+    }
+
+    @Test
+    public void iteratorRemoveDeletesTheEntry() {
+        Iterator<DownloadInfo> iterator = mDbManager.iterateDownloads();
+        for (int i = 0; i < DbManager.ITERATOR_PAGE_SIZE + 1; i++) {
+            iterator.next();
+            iterator.remove();
+        }
+        assertEquals(-1, mDbManager.getDownloadState("id250"));
+        assertEquals(-1, mDbManager.getDownloadState("id150"));
+        assertEquals("id149", iterator.next().getArticleId());
+        assertEquals(249 - DbManager.ITERATOR_PAGE_SIZE, iterateIds().size());
+    }
+
+    @Test
+    public void pendingItemsSeeTheUncommittedStates() {
+        mStore.preload(withState(info("queued", 300, 0), IDownloadState.IN_QUEUE),
+                withState(info("running", 301, 0), IDownloadState.IN_PROGRESS),
+                withState(info("done", 302, 0), IDownloadState.IN_PROGRESS));
+        mDbManager.put(withState(info("done", 302, 100), IDownloadState.COMPLETE));
+        mDbManager.put(withState(info("new", 303, 0), IDownloadState.IN_QUEUE));
+
+        assertEquals("[new, running, queued]", ids(mDbManager.getPendingItems()).toString());
+        assertTrue(mDbManager.ifPendingItemPresent());
+    }
+
+    private static DownloadInfo withState(DownloadInfo info, int state) {
+        return info.withDownloadState(state);
+    }
+
+    @Test
+    public void statesAreReadFromTheStoreOnFirstUse() {
+        mStore.preload(withState(info("done", 300, 100), IDownloadState.COMPLETE));
+
+        assertEquals(IDownloadState.COMPLETE, mDbManager.getDownloadState("done"));
+        assertTrue(mDbManager.isDownloaded("done"));
+        assertEquals(100, mDbManager.getProgress("done"));
+        assertEquals(-1, mDbManager.getDownloadState("missing"));
+        assertTrue(!mDbManager.isAlreadyAddedToDb("missing"));
+    }
+
+    @Test
+    public void readsSeeTheUncommittedWrites() {
+        mDbManager.put(withState(info("id5", 5, 60), IDownloadState.PAUSED));
+        mDbManager.delete("id6");
+
+        assertEquals(60, mDbManager.getDownloadInfo("id5").getProgress());
+        assertEquals(IDownloadState.PAUSED, mDbManager.getDownloadState("id5"));
+        assertEquals(null, mDbManager.getDownloadInfo("id6"));
+        assertEquals(-1, mDbManager.getDownloadState("id6"));
+        assertEquals("id7", mDbManager.getDownloadInfo("id7").getArticleId());
+    }
+}
@@ -0,0 +1,64 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadStateCacheTest {
+
+    private static DownloadInfo info(String id, int state, int progress) {
+        return new DownloadInfo(id, "http://example.com/" + id, false, "/sdcard/" + id, 0, 102,
+                state, progress, 100, progress, null);
+    }
+
+    @Test
+    public void unknownUntilWrittenOrFilled() {
+        DownloadStateCache cache = new DownloadStateCache();
+        assertEquals(DownloadStateCache.UNKNOWN, cache.getDownloadState("a"));
+        assertEquals(DownloadStateCache.UNKNOWN, cache.getProgress("a"));
+
+        cache.put(info("a", IDownloadState.IN_PROGRESS, 40));
+        assertEquals(IDownloadState.IN_PROGRESS, cache.getDownloadState("a"));
+        assertEquals(40, cache.getProgress("a"));
+
+        cache.fill("b", info("b", IDownloadState.COMPLETE, 100));
+        assertEquals(IDownloadState.COMPLETE, cache.getDownloadState("b"));
+    }
+
+    @Test
+    public void missingRequestsAreRemembered() {
+        DownloadStateCache cache = new DownloadStateCache();
+        cache.fill("a", null);
+        assertEquals(DownloadStateCache.ABSENT, cache.getDownloadState("a"));
+
+        cache.put(info("b", IDownloadState.IN_QUEUE, 0));
+        cache.remove("b");
+        assertEquals(DownloadStateCache.ABSENT, cache.getDownloadState("b"));
+        assertEquals(0, cache.getProgress("b"));
+    }
+
+    @Test
+    public void fillNeverReplacesAWrite() {
+        DownloadStateCache cache = new DownloadStateCache();
+        cache.put(info("a", IDownloadState.COMPLETE, 100));
+        cache.fill("a", info("a", IDownloadState.IN_PROGRESS, 10));
+        assertEquals(IDownloadState.COMPLETE, cache.getDownloadState("a"));
+
+        cache.remove("b");
+        cache.fill("b", info("b", IDownloadState.IN_PROGRESS, 10));
+        assertEquals(DownloadStateCache.ABSENT, cache.getDownloadState("b"));
+    }
+
+    @Test
+    public void writesReplaceFilledStates() {
+        DownloadStateCache cache = new DownloadStateCache();
+        cache.fill("a", info("a", IDownloadState.IN_PROGRESS, 10));
+        cache.put(info("a", IDownloadState.PAUSED, 20));
+        assertEquals(IDownloadState.PAUSED, cache.getDownloadState("a"));
+        assertEquals(20, cache.getProgress("a"));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,308 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalDownloadStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "downloads.journal");
+    }
+
+    private static DownloadInfo info(String id, int state, int progress) {
+        return new DownloadInfo(id, "http://example.com/" + id, true, "/sdcard/" + id, 1000,
+                102, state, progress * 10L, 1000, progress, null);
+    }
+
+    private static Map<String, DownloadInfo> batch(DownloadInfo... infos) {
+        Map<String, DownloadInfo> batch = new LinkedHashMap<>();
+        for (DownloadInfo info : infos) {
+            batch.put(info.getArticleId(), info);
+        }
+        return batch;
+    }
+
+    private static Map<String, DownloadInfo> delete(String articleId) {
+        Map<String, DownloadInfo> batch = new LinkedHashMap<>();
+        batch.put(articleId, null);
+        return batch;
+    }
+
+    /**
+     * Replays the journal with a new store, as after a restart.
+     */
+    private Map<String, DownloadInfo> reload() {
+        Map<String, DownloadInfo> loaded = new HashMap<>();
+        for (DownloadInfo info : new JournalDownloadStore(mFile).getPage(0, Integer.MAX_VALUE)) {
+            loaded.put(info.getArticleId(), info);
+        }
+        return loaded;
+    }
+
+    private static void assertSameInfo(DownloadInfo expected, DownloadInfo actual) {
+        assertEquals(expected.getArticleId(), actual.getArticleId());
+        assertEquals(expected.getUrl(), actual.getUrl());
+        assertEquals(expected.getDestinationPath(), actual.getDestinationPath());
+        assertEquals(expected.isDownloadOnWiFi(), actual.isDownloadOnWiFi());
+        assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+        assertEquals(expected.getPriority(), actual.getPriority());
+        assertEquals(expected.getDownloadState(), actual.getDownloadState());
+        assertEquals(expected.getDownloadedBytes(), actual.getDownloadedBytes());
+        assertEquals(expected.getTotalBytes(), actual.getTotalBytes());
+        assertEquals(expected.getProgress(), actual.getProgress());
+    }
+
+    private void cutTail(int bytes) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - bytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void replayRestoresTheLatestState() {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", 1, 0), info("b", 1, 0)));
+        store.write(batch(info("a", 2, 40)));
+        store.write(delete("b"));
+        store.write(batch(info("c", 1, 0)));
+
+        Map<String, DownloadInfo> loaded = reload();
+        assertEquals(2, loaded.size());
+        assertSameInfo(info("a", 2, 40), loaded.get("a"));
+        assertSameInfo(info("c", 1, 0), loaded.get("c"));
+        assertNull(loaded.get("b"));
+    }
+
+    @Test
+    public void changedRequestIsRewrittenInFull() {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", 1, 0)));
+        DownloadInfo moved = new DownloadInfo("a", "http://mirror.example.com/a", false,
+                "/sdcard/moved", 2000, 103, 2, 70, 1000, 7, null);
+        store.write(batch(moved));
+
+        assertSameInfo(moved, reload().get("a"));
+    }
+
+    @Test
+    public void recordCutShortIsDropped() throws IOException {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", 1, 0)));
+        long validLength = mFile.length();
+        store.write(batch(info("a", 2, 50)));
+        cutTail(3);
+
+        Map<String, DownloadInfo> loaded = reload();
+        assertSameInfo(info("a", 1, 0), loaded.get("a"));
+        assertEquals(validLength, mFile.length());
+    }
+
+    @Test
+    public void recordWithBadChecksumIsDropped() throws IOException {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", 1, 0)));
+        long validLength = mFile.length();
+        store.write(batch(info("b", 1, 0)));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        Map<String, DownloadInfo> loaded = reload();
+        assertEquals(1, loaded.size());
+        assertSameInfo(info("a", 1, 0), loaded.get("a"));
+        assertEquals(validLength, mFile.length());
+    }
+
+    @Test
+    public void writesAfterADamagedTailAreKept() throws IOException {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", 1, 0)));
+        store.write(batch(info("a", 2, 50)));
+        cutTail(3);
+
+        JournalDownloadStore restarted = new JournalDownloadStore(mFile);
+        restarted.write(batch(info("a", 2, 60)));
+        assertSameInfo(info("a", 2, 60), reload().get("a"));
+    }
+
+    @Test
+    public void compactionKeepsOneRecordPerDownload() {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", 1, 0), info("b", 1, 0)));
+        long twoRecordsLength = mFile.length();
+        for (int i = 1; i <= JournalDownloadStore.MIN_COMPACTION_RECORDS; i++) {
+            store.write(batch(info("a", 2, i % 100)));
+        }
+        store.write(batch(info("a", 2, 99)));
+
+        assertTrue("journal not compacted, " + mFile.length() + " bytes",
+                mFile.length() < twoRecordsLength * 4);
+        assertTrue(!new File(mFile.getPath() + ".compact").exists());
+        Map<String, DownloadInfo> loaded = reload();
+        assertEquals(2, loaded.size());
+        assertSameInfo(info("a", 2, 99), loaded.get("a"));
+        assertSameInfo(info("b", 1, 0), loaded.get("b"));
+
+        // Appending continues after the compacted records.
+        store.write(batch(info("b", 2, 10)));
+        assertSameInfo(info("b", 2, 10), reload().get("b"));
+    }
+
+    @Test
+    public void failedAppendLeavesTheDownloadUnsaved() {
+        // A directory in place of the journal fails every write.
+        assertTrue(mFile.mkdir());
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        try {
+            store.write(batch(info("a", 1, 0)));
+            fail("write into a directory succeeded");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(mFile.delete());
+
+        // Only the progress changed, but the download never reached the journal so it has
+        // to be written in full.
+        store.write(batch(info("a", 2, 30)));
+        assertSameInfo(info("a", 2, 30), reload().get("a"));
+    }
+
+    @Test
+    public void unreadableRecordKeepsTheJournal() throws IOException {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", 1, 0), info("b", 1, 0)));
+        long validLength = mFile.length();
+
+        // A put record with a valid checksum, its article id is malformed UTF.
+        byte[] record = {1, 0, 2, (byte) 0xc0, 0};
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile, true));
+        try {
+            out.writeInt(record.length);
+            out.writeInt((int) crc.getValue());
+            out.write(record);
+        } finally {
+            out.close();
+        }
+        long damagedLength = mFile.length();
+
+        JournalDownloadStore restarted = new JournalDownloadStore(mFile);
+        try {
+            restarted.write(batch(info("c", 1, 0)));
+            fail("write into an unreadable journal succeeded");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            restarted.get("a");
+            fail("read of an unreadable journal succeeded");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(damagedLength, mFile.length());
+
+        // Once the record is removed the journal loads with everything before it.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(validLength);
+        } finally {
+            file.close();
+        }
+        restarted.write(batch(info("c", 1, 0)));
+        Map<String, DownloadInfo> loaded = reload();
+        assertEquals(3, loaded.size());
+        assertSameInfo(info("a", 1, 0), loaded.get("a"));
+    }
+
+    private static DownloadInfo stamped(String id, long timeStamp) {
+        return new DownloadInfo(id, "http://example.com/" + id, false, "/sdcard/" + id,
+                timeStamp, 102, 1, 0, 0, 0, null);
+    }
+
+    private static String ids(List<DownloadInfo> infos) {
+        StringBuilder ids = new StringBuilder();
+        for (DownloadInfo info : infos) {
+            ids.append(info.getArticleId()).append(' ');
+        }
+        return ids.toString().trim();
+    }
+
+    @Test
+    public void pagesAreNewestFirstThenById() {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(stamped("b", 2), stamped("a", 2), stamped("c", 3), stamped("d", 1)));
+
+        assertEquals("c a b d", ids(store.getPage(0, 10)));
+        assertEquals("a b", ids(store.getPage(1, 2)));
+        assertEquals("c a", ids(store.getPageAfter(null, 2)));
+        assertEquals("b d", ids(store.getPageAfter(stamped("a", 2), 5)));
+        assertEquals("", ids(store.getPageAfter(stamped("d", 1), 5)));
+    }
+
+    @Test
+    public void pagesAreReadAfterReplayAndCompaction() {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(stamped("a", 1), stamped("b", 2)));
+        for (int i = 0; i <= JournalDownloadStore.MIN_COMPACTION_RECORDS; i++) {
+            store.write(batch(info("c", 2, i % 100)));
+        }
+        store.write(delete("a"));
+
+        assertEquals("c b", ids(store.getPage(0, 10)));
+        JournalDownloadStore restarted = new JournalDownloadStore(mFile);
+        List<DownloadInfo> page = restarted.getPageAfter(null, 10);
+        assertEquals("c b", ids(page));
+        assertSameInfo(info("c", 2, JournalDownloadStore.MIN_COMPACTION_RECORDS % 100), page.get(0));
+    }
+
+    @Test
+    public void pendingDownloadsFollowTheirState() {
+        JournalDownloadStore store = new JournalDownloadStore(mFile);
+        store.write(batch(info("a", IDownloadState.IN_QUEUE, 0),
+                stamped("b", 5).withDownloadState(IDownloadState.IN_PROGRESS),
+                stamped("c", 6).withDownloadState(IDownloadState.PAUSED)));
+        assertEquals("a b", ids(store.getPending()));
+
+        store.write(batch(info("a", IDownloadState.COMPLETE, 100),
+                stamped("c", 6).withDownloadState(IDownloadState.IN_QUEUE)));
+        assertEquals("c b", ids(store.getPending()));
+        assertEquals("c b", ids(new JournalDownloadStore(mFile).getPending()));
+
+        store.write(delete("b"));
+        assertEquals("c", ids(store.getPending()));
+    }
+}
@@ -0,0 +1,78 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.interfaces.IDownloadState;
+import com.media.downloadmanager.model.DownloadInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Store keeping the downloads in memory for the tests.
+ */
+class MemoryDownloadStore implements DownloadStore {
+
+    private final Map<String, DownloadInfo> mSaved = new HashMap<>();
+
+    @Override
+    public void openSession() {
+    }
+
+    @Override
+    public void closeSession() {
+    }
+
+    @Override
+    public synchronized DownloadInfo get(String articleId) {
+        return mSaved.get(articleId);
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getPending() {
+        List<DownloadInfo> pending = new ArrayList<>();
+        for (DownloadInfo info : sorted()) {
+            if (info.getDownloadState() == IDownloadState.IN_QUEUE
+                    || info.getDownloadState() == IDownloadState.IN_PROGRESS) {
+                pending.add(info);
+            }
+        }
+        return pending;
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getPage(int offset, int limit) {
+        List<DownloadInfo> all = sorted();
+        int from = Math.min(offset, all.size());
+        return new ArrayList<>(all.subList(from, (int) Math.min(all.size(), (long) from + limit)));
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getPageAfter(DownloadInfo last, int limit) {
+        List<DownloadInfo> page = new ArrayList<>();
+        for (DownloadInfo info : sorted()) {
+            if (page.size() < limit && (last == null || NEWEST_FIRST.compare(info, last) > 0)) {
+                page.add(info);
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public synchronized void write(Map<String, DownloadInfo> batch) {
+        for (Map.Entry<String, DownloadInfo> write : batch.entrySet()) {
+            if (write.getValue() == null) {
+                mSaved.remove(write.getKey());
+            } else {
+                mSaved.put(write.getKey(), write.getValue());
+            }
+        }
+    }
+
+    private List<DownloadInfo> sorted() {
+        List<DownloadInfo> all = new ArrayList<>(mSaved.values());
+        Collections.sort(all, NEWEST_FIRST);
+        return all;
+    }
+}
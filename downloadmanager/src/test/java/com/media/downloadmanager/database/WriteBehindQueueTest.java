@@ -0,0 +1,145 @@
+package com.media.downloadmanager.database;
+
+import com.media.downloadmanager.model.DownloadInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindQueueTest {
+
+    /**
+     * Keeps the written downloads in memory, failing the number of writes it is told to
+     */
+    private static class FakeStore extends MemoryDownloadStore {
+        final List<Map<String, DownloadInfo>> mBatches = new ArrayList<>();
+        int mFailuresLeft = 0;
+
+        @Override
+        public synchronized void write(Map<String, DownloadInfo> batch) {
+            if (mFailuresLeft > 0) {
+                mFailuresLeft--;
+                throw new IllegalStateException("disk full");
+            }
+            mBatches.add(new LinkedHashMap<>(batch));
+            super.write(batch);
+        }
+
+        synchronized void failNext(int count) {
+            mFailuresLeft = count;
+        }
+    }
+
+    private FakeStore mStore;
+    private WriteBehindQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mStore = new FakeStore();
+        mQueue = new WriteBehindQueue(mStore);
+        mQueue.start();
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.interrupt();
+    }
+
+    /**
+     * Flushes until the failed commits were retried successfully.
+     */
+    private boolean flushRetried() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mQueue.flush()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private static DownloadInfo info(String id, int progress) {
+        return new DownloadInfo(id, "http://example.com/" + id, false, "/tmp/" + id, 0, 102, 0,
+                progress, 100, progress, null);
+    }
+
+    @Test
+    public void flushWaitsForTheWrites() {
+        mQueue.put(info("a", 10));
+        mQueue.put(info("b", 20));
+        assertTrue(mQueue.flush());
+        assertEquals(10, mStore.get("a").getProgress());
+        assertEquals(20, mStore.get("b").getProgress());
+
+        mQueue.delete("a");
+        assertTrue(mQueue.flush());
+        assertNull(mStore.get("a"));
+    }
+
+    @Test
+    public void flushReportsAFailedCommitAndTheBatchIsRetried() throws InterruptedException {
+        mStore.failNext(Integer.MAX_VALUE);
+        mQueue.put(info("a", 10));
+        assertFalse(mQueue.flush());
+        assertNull(mStore.get("a"));
+
+        assertFalse(mQueue.flush());
+        mStore.failNext(0);
+        assertTrue(flushRetried());
+        assertEquals(10, mStore.get("a").getProgress());
+    }
+
+    @Test
+    public void newerWritesWinOverTheFailedBatch() throws InterruptedException {
+        mStore.failNext(Integer.MAX_VALUE);
+        mQueue.put(info("a", 10));
+        mQueue.put(info("b", 10));
+        assertFalse(mQueue.flush());
+        mQueue.put(info("a", 50));
+        mQueue.delete("b");
+        mStore.failNext(0);
+
+        assertTrue(flushRetried());
+        assertEquals(50, mStore.get("a").getProgress());
+        assertNull(mStore.get("b"));
+    }
+
+    @Test
+    public void writesToTheSameIdCoalesce() throws InterruptedException {
+        mStore.failNext(Integer.MAX_VALUE);
+        mQueue.put(info("a", 1));
+        assertFalse(mQueue.flush());
+        for (int progress = 2; progress <= 10; progress++) {
+            mQueue.put(info("a", progress));
+        }
+        mStore.failNext(0);
+        assertTrue(flushRetried());
+        int writesOfA = 0;
+        for (Map<String, DownloadInfo> batch : mStore.mBatches) {
+            if (batch.containsKey("a")) {
+                writesOfA++;
+            }
+        }
+        assertEquals(1, writesOfA);
+        assertEquals(10, mStore.get("a").getProgress());
+    }
+
+    @Test
+    public void retryDelayDoublesUpToTheMaximum() {
+        assertEquals(WriteBehindQueue.INITIAL_RETRY_DELAY_MS, WriteBehindQueue.getRetryDelay(1));
+        assertEquals(2 * WriteBehindQueue.INITIAL_RETRY_DELAY_MS, WriteBehindQueue.getRetryDelay(2));
+        assertEquals(4 * WriteBehindQueue.INITIAL_RETRY_DELAY_MS, WriteBehindQueue.getRetryDelay(3));
+        assertEquals(WriteBehindQueue.MAX_RETRY_DELAY_MS, WriteBehindQueue.getRetryDelay(100));
+    }
+}
@@ -0,0 +1,67 @@
+package com.media.downloadmanager.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBufferIsReused() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.acquire(64 * 1024, true);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(64 * 1024, true));
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void requestIsServedFromTheSmallestClassThatFits() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.acquire(5000, false);
+        assertEquals(8192, buffer.capacity());
+        assertEquals(5000, buffer.limit());
+        assertFalse(buffer.isDirect());
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire(6000, false);
+        assertSame(buffer, reused);
+        assertEquals(6000, reused.limit());
+    }
+
+    @Test
+    public void directAndHeapBuffersAreKeptApart() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer heap = pool.acquire(4096, false);
+        pool.release(heap);
+        ByteBuffer direct = pool.acquire(4096, true);
+        assertNotSame(heap, direct);
+        assertTrue(direct.isDirect());
+    }
+
+    @Test
+    public void buffersOverTheCapAreDropped() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        ByteBuffer first = pool.acquire(64 * 1024, true);
+        ByteBuffer second = pool.acquire(64 * 1024, true);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(64 * 1024, pool.getPooledBytes());
+        assertEquals(2 * 64 * 1024, pool.getHighWaterMark());
+    }
+
+    @Test
+    public void oversizedBuffersAreNeverPooled() {
+        BufferPool pool = new BufferPool(16 * 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(2 * 1024 * 1024, true);
+        assertEquals(2 * 1024 * 1024, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(0, pool.getPooledBytes());
+    }
+}
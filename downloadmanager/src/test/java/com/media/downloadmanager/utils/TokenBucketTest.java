@@ -0,0 +1,67 @@
+package com.media.downloadmanager.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void unlimitedNeverWaits() {
+        TokenBucket bucket = new TokenBucket(TokenBucket.UNLIMITED);
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+        assertEquals(0, bucket.reserve(1000000));
+    }
+
+    @Test
+    public void debtIsPaidAtTheRate() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertBetween(450, 500, bucket.reserve(500));
+        // The debt adds up.
+        assertBetween(950, 1000, bucket.reserve(500));
+    }
+
+    @Test
+    public void bucketRefillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10000);
+        long first = bucket.reserve(1000);
+        Thread.sleep(first + 50);
+        assertEquals(0, bucket.reserve(100));
+    }
+
+    @Test
+    public void bucketHoldsAtMostOneSecond() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10000);
+        bucket.reserve(0);
+        Thread.sleep(1200);
+        assertEquals(0, bucket.reserve(10000));
+        assertTrue(bucket.reserve(5000) > 0);
+    }
+
+    @Test
+    public void debtIsKeptWhenTheRateChanges() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(1000);
+        bucket.setRate(2000);
+        assertEquals(2000, bucket.getRate());
+        assertBetween(450, 500, bucket.reserve(0));
+    }
+
+    @Test
+    public void removingTheLimitStopsTheWaits() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertTrue(bucket.reserve(5000) > 0);
+        bucket.setRate(TokenBucket.UNLIMITED);
+        assertEquals(0, bucket.reserve(5000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRateIsRejected() {
+        new TokenBucket(-1);
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}